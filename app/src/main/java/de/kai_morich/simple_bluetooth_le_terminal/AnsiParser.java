@@ -0,0 +1,108 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+/**
+ * ANSI escape sequence parser working on bytes
+ *   - printable bytes are passed in runs, control characters and escape sequences are decoded
+ *   - state is kept across calls, so sequences can be split across BLE packets
+ *   - no allocation while parsing
+ *
+ * escape sequences are ASCII, so bytes >= 0x80 (e.g. UTF-8 multi-byte characters) are passed as text.
+ * Subset required for nRF52840 sdk17's cli module:
+ *   ESC 7, ESC 8, ESC [ J, ESC [ 2 J, ESC [ K, ESC [ H, ESC [ ? 3 l, ESC [ 6 n,
+ *   ESC [ m, ESC [ 1 ; 3_ m, ESC [ 4_ m, ESC [ _ A, ESC [ _ B, ESC [ _ C, ESC [ _ D
+ */
+class AnsiParser {
+
+    interface Sink {
+        void onText(byte[] data, int offset, int length);
+        /** control characters except ESC, e.g. CR, LF, BS */
+        void onControl(byte c);
+        /** ESC followed by a single character, e.g. ESC 7 */
+        void onEscape(char command);
+        /** ESC [ params command, missing params are 0. params array is only valid during this call */
+        void onCsi(char command, int[] params, int paramCount, boolean privateMode);
+    }
+
+    private static final byte ESC = 0x1b;
+    private static final int MAX_PARAMS = 16;
+
+    private enum State { Ground, Escape, Csi }
+
+    private final Sink sink;
+    private final int[] params = new int[MAX_PARAMS];
+    private State state = State.Ground;
+    private int paramCount;
+    private boolean privateMode;
+
+    AnsiParser(Sink sink) {
+        this.sink = sink;
+    }
+
+    void reset() {
+        state = State.Ground;
+    }
+
+    void parse(byte[] data, int offset, int length) {
+        int end = offset + length;
+        int textStart = -1;
+        for (int i = offset; i < end; i++) {
+            byte b = data[i];
+            switch (state) {
+                case Ground:
+                    if ((b & 0xff) >= 0x20 && b != 0x7f) {
+                        if (textStart < 0)
+                            textStart = i;
+                        break;
+                    }
+                    if (textStart >= 0) {
+                        sink.onText(data, textStart, i - textStart);
+                        textStart = -1;
+                    }
+                    if (b == ESC)
+                        state = State.Escape;
+                    else
+                        sink.onControl(b);
+                    break;
+                case Escape:
+                    if (b == '[') {
+                        state = State.Csi;
+                        paramCount = 0;
+                        params[0] = 0;
+                        privateMode = false;
+                    } else if (b == ESC) {
+                        // stay in escape state
+                    } else {
+                        state = State.Ground;
+                        sink.onEscape((char) b);
+                    }
+                    break;
+                case Csi:
+                    if (b >= '0' && b <= '9') {
+                        if (paramCount == 0)
+                            paramCount = 1;
+                        int p = params[paramCount - 1];
+                        if (p < 100000) // ignore overflow
+                            params[paramCount - 1] = p * 10 + (b - '0');
+                    } else if (b == ';') {
+                        if (paramCount == 0)
+                            paramCount = 1;
+                        if (paramCount < MAX_PARAMS)
+                            params[paramCount++] = 0;
+                    } else if (b == '?') {
+                        privateMode = true;
+                    } else if (b >= 0x40 && b <= 0x7e) {
+                        state = State.Ground;
+                        sink.onCsi((char) b, params, paramCount, privateMode);
+                    } else if (b == ESC) {
+                        state = State.Escape; // aborted sequence
+                    } else if ((b & 0xff) < 0x20) {
+                        sink.onControl(b); // executed within sequence, like VT100
+                    }
+                    // intermediate bytes 0x20..0x2f ignored
+                    break;
+            }
+        }
+        if (textStart >= 0)
+            sink.onText(data, textStart, end - textStart);
+    }
+}
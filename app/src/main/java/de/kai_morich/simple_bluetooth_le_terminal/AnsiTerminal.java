@@ -0,0 +1,109 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import java.nio.CharBuffer;
+
+/**
+ * apply text and control actions from AnsiParser to a TerminalBuffer
+ */
+class AnsiTerminal implements AnsiParser.Sink {
+
+    private final TerminalBuffer buffer;
+    private final TextDecoder decoder;
+    private int savedCursor;
+    private int style = TerminalStyle.DEFAULT;
+
+    AnsiTerminal(TerminalBuffer buffer, TextDecoder decoder) {
+        this.buffer = buffer;
+        this.decoder = decoder;
+    }
+
+    @Override
+    public void onText(byte[] data, int offset, int length) {
+        buffer.setStyle(style); // others like send() might have changed it
+        // escape sequences are ASCII and never part of UTF-8 multi-byte sequences, so text runs can be decoded separately
+        CharBuffer chars = decoder.decode(data, offset, length);
+        buffer.append(chars.array(), chars.arrayOffset() + chars.position(), chars.remaining());
+    }
+
+    @Override
+    public void onControl(byte c) {
+        switch (c) {
+            case '\n':
+                buffer.newLine();
+                break;
+            case '\r':
+                buffer.carriageReturn();
+                break;
+            case '\b':
+                buffer.cursorBack(1);
+                break;
+            case '\t':
+                buffer.setCursor((buffer.getCursor() + 8) & ~7);
+                break;
+            default: // BEL, ...
+                break;
+        }
+    }
+
+    @Override
+    public void onEscape(char command) {
+        switch (command) {
+            case '7':
+                savedCursor = buffer.getCursor();
+                break;
+            case '8':
+                buffer.setCursor(savedCursor);
+                break;
+        }
+    }
+
+    @Override
+    public void onCsi(char command, int[] params, int paramCount, boolean privateMode) {
+        int n = paramCount > 0 && params[0] > 0 ? params[0] : 1;
+        switch (command) {
+            case 'C':
+                buffer.cursorForward(n);
+                break;
+            case 'D':
+                buffer.cursorBack(n);
+                break;
+            case 'K':
+                buffer.eraseLine(paramCount > 0 ? params[0] : 0);
+                break;
+            case 'm':
+                selectGraphicRendition(params, paramCount);
+                break;
+            default: // A, B, H, J, n, ?3l ignored, scrollback only has an editable last line
+                break;
+        }
+    }
+
+    private void selectGraphicRendition(int[] params, int paramCount) {
+        if(paramCount == 0)
+            style = TerminalStyle.DEFAULT;
+        for (int i = 0; i < paramCount; i++) {
+            int p = params[i];
+            if (p == 0)
+                style = TerminalStyle.DEFAULT;
+            else if (p == 1)
+                style = TerminalStyle.withBold(style, true);
+            else if (p == 22)
+                style = TerminalStyle.withBold(style, false);
+            else if (p >= 30 && p <= 37)
+                style = TerminalStyle.withForeground(style, p - 30 + 1);
+            else if (p == 39)
+                style = TerminalStyle.withForeground(style, TerminalStyle.DEFAULT);
+            else if (p >= 40 && p <= 47)
+                style = TerminalStyle.withBackground(style, p - 40 + 1);
+            else if (p == 49)
+                style = TerminalStyle.withBackground(style, TerminalStyle.DEFAULT);
+            else if (p >= 90 && p <= 97)
+                style = TerminalStyle.withForeground(style, p - 90 + 9);
+            else if (p >= 100 && p <= 107)
+                style = TerminalStyle.withBackground(style, p - 100 + 9);
+            else if ((p == 38 || p == 48) && i + 1 < paramCount)
+                i += params[i + 1] == 5 ? 2 : 4; // 256 and rgb colors not supported
+        }
+        buffer.setStyle(style);
+    }
+}
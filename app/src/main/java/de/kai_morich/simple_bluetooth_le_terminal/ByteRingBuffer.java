@@ -0,0 +1,98 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+/**
+ * fixed capacity byte ring buffer, used as write queue
+ *   - data is copied once into the ring on put()
+ *   - take() copies up to one payload into a reusable array per length,
+ *     so steady-state writes do not allocate
+ *
+ * not thread safe, callers synchronize on the buffer
+ */
+class ByteRingBuffer {
+
+    private final byte[] buffer;
+    private final byte[][] chunks;
+    private int head;
+    private int size;
+    private int highWaterMark;
+
+    ByteRingBuffer(int capacity, int maxChunkSize) {
+        if(capacity <= 0 || maxChunkSize <= 0)
+            throw new IllegalArgumentException("invalid size");
+        buffer = new byte[capacity];
+        chunks = new byte[maxChunkSize+1][];
+        highWaterMark = capacity;
+    }
+
+    int capacity() { return buffer.length; }
+    int size() { return size; }
+    int available() { return buffer.length - size; }
+    boolean isEmpty() { return size == 0; }
+
+    int getHighWaterMark() { return highWaterMark; }
+
+    void setHighWaterMark(int highWaterMark) {
+        if(highWaterMark <= 0 || highWaterMark > buffer.length)
+            throw new IllegalArgumentException("invalid high water mark");
+        this.highWaterMark = highWaterMark;
+    }
+
+    boolean aboveHighWaterMark() { return size >= highWaterMark; }
+
+    /**
+     * @return false if data does not fit, nothing is copied in this case
+     */
+    boolean put(byte[] data, int offset, int length) {
+        if(length > available())
+            return false;
+        int tail = (head + size) % buffer.length;
+        int first = Math.min(length, buffer.length - tail);
+        System.arraycopy(data, offset, buffer, tail, first);
+        System.arraycopy(data, offset + first, buffer, 0, length - first);
+        size += length;
+        return true;
+    }
+
+    /**
+     * @return next chunk of at most maxLength bytes, or null if empty.
+     *         The returned array is reused by later calls with same length.
+     */
+    byte[] take(int maxLength) {
+        byte[] chunk = peek(maxLength);
+        if(chunk != null)
+            skip(chunk.length);
+        return chunk;
+    }
+
+    /**
+     * like take(), but data stays in buffer until skip()
+     */
+    byte[] peek(int maxLength) {
+        if(size == 0)
+            return null;
+        int length = Math.min(Math.min(size, maxLength), chunks.length-1);
+        byte[] chunk = chunks[length];
+        if(chunk == null) {
+            chunk = new byte[length];
+            chunks[length] = chunk;
+        }
+        int first = Math.min(length, buffer.length - head);
+        System.arraycopy(buffer, head, chunk, 0, first);
+        System.arraycopy(buffer, 0, chunk, first, length - first);
+        return chunk;
+    }
+
+    void skip(int length) {
+        if(length > size)
+            throw new IllegalArgumentException("skip beyond end");
+        head = (head + length) % buffer.length;
+        size -= length;
+        if(size == 0)
+            head = 0;
+    }
+
+    void clear() {
+        head = 0;
+        size = 0;
+    }
+}
@@ -0,0 +1,70 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import java.io.IOException;
+
+/**
+ * connection closed by BLE stack, e.g. device out of range
+ *   - transient for gatt status codes where reconnect usually succeeds after some time,
+ *     and for GATT operations without callback, e.g. link dropped without disconnect event
+ *   - reconnecting, if SerialService tries to reconnect. Else the connection is finally closed
+ */
+class ConnectionLostException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int status;
+    private final boolean transientLoss;
+    private final boolean reconnecting;
+
+    ConnectionLostException(String message, int status) {
+        super(message);
+        this.status = status;
+        this.transientLoss = isTransient(status);
+        this.reconnecting = false;
+    }
+
+    /**
+     * GATT operation timeout, transient
+     */
+    ConnectionLostException(String message) {
+        super(message);
+        this.status = -1;
+        this.transientLoss = true;
+        this.reconnecting = false;
+    }
+
+    ConnectionLostException(String message, Throwable cause) {
+        super(message, cause);
+        this.status = cause instanceof ConnectionLostException ? ((ConnectionLostException) cause).status : -1;
+        this.transientLoss = false;
+        this.reconnecting = false;
+    }
+
+    ConnectionLostException(ConnectionLostException e, boolean reconnecting) {
+        super(e.getMessage(), e.getCause());
+        this.status = e.status;
+        this.transientLoss = e.transientLoss;
+        this.reconnecting = reconnecting;
+    }
+
+    int getStatus() { return status; }
+    boolean isTransient() { return transientLoss; }
+    boolean isReconnecting() { return reconnecting; }
+
+    static boolean isTransient(Exception e) {
+        return e instanceof ConnectionLostException && ((ConnectionLostException) e).transientLoss;
+    }
+
+    private static boolean isTransient(int status) {
+        switch (status) {
+            case 8:   // connection timeout, link supervision timeout
+            case 19:  // remote device terminated connection, e.g. reset
+            case 34:  // LMP response timeout
+            case 62:  // failed to establish connection
+            case 133: // GATT_ERROR, mostly connect timeout
+                return true;
+            default:  // e.g. 22 = terminated by local host
+                return false;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+/**
+ * read credit window for Telit TIO, sized from measured notification rate and credit grant round trip
+ *   - window covers ~4 grant round trips at the current notification rate, so the peer does not stall
+ *   - credits are granted in batches of at least half the window, to save airtime for credit writes
+ *   - idle gaps are not used for the rate, so the window stays open for the next burst
+ *
+ * times in milliseconds, passed by caller
+ */
+class CreditController {
+
+    static final int MIN_WINDOW = 64; // previous fixed window, smaller windows only cost more credit writes
+    static final int MAX_WINDOW = 255; // granted with one byte
+    private static final int MAX_INTERVAL = 1000; // longer gaps are idle time
+    private static final double MIN_INTERVAL = 0.05; // multiple notifications per connection event arrive in the same millisecond
+
+    private int window = MIN_WINDOW;
+    private int outstanding; // granted to peer, not yet used
+    private double interval; // between notifications, smoothed. 0 = unknown
+    private double rtt; // from grant to confirmed credit write, smoothed. 0 = unknown
+    private long lastNotification;
+    private long grantTime; // 0 = no grant measured
+    private long notifications, grants, granted;
+
+    synchronized void reset() {
+        window = MIN_WINDOW;
+        outstanding = 0;
+        interval = 0;
+        rtt = 0;
+        lastNotification = 0;
+        grantTime = 0;
+    }
+
+    /**
+     * @return credits to grant when the read characteristic is connected
+     */
+    synchronized int initialGrant(long now) {
+        return grant(window - outstanding, now);
+    }
+
+    /**
+     * @return credits to grant after this notification, 0 if not yet
+     */
+    synchronized int onNotification(long now) {
+        notifications++;
+        if(outstanding > 0)
+            outstanding--;
+        if(lastNotification != 0) {
+            long sample = now - lastNotification;
+            if(sample <= MAX_INTERVAL)
+                interval = interval == 0 ? Math.max(sample, MIN_INTERVAL) : Math.max(interval * 7 / 8 + sample / 8.0, MIN_INTERVAL);
+        }
+        lastNotification = now;
+        double perRtt = 0;
+        if(interval > 0 && rtt > 0) {
+            perRtt = rtt / interval;
+            window = (int) Math.max(MIN_WINDOW, Math.min(MAX_WINDOW, Math.round(4 * perRtt)));
+        }
+        int low = (int) Math.min(window / 2, Math.max(window / 4, Math.ceil(perRtt * 1.5)));
+        if(outstanding > low)
+            return 0;
+        return grant(window - outstanding, now);
+    }
+
+    /**
+     * credit write confirmed by onCharacteristicWrite
+     */
+    synchronized void onGrantDone(long now) {
+        if(grantTime == 0)
+            return;
+        double sample = Math.max(now - grantTime, 1);
+        rtt = rtt == 0 ? sample : rtt * 7 / 8 + sample / 8;
+        grantTime = 0;
+    }
+
+    synchronized int getWindow() { return window; }
+
+    synchronized int getOutstanding() { return outstanding; }
+
+    synchronized String getStats() {
+        return "window="+window+" outstanding="+outstanding
+                +" interval="+String.format("%.2f", interval)+" rtt="+Math.round(rtt)
+                +" notifications="+notifications+" grants="+grants+" granted="+granted;
+    }
+
+    private int grant(int credits, long now) { // with lock held
+        if(credits <= 0)
+            return 0;
+        outstanding += credits;
+        grants++;
+        granted += credits;
+        if(grantTime == 0)
+            grantTime = now; // later grants while in flight are not measured
+        return credits;
+    }
+
+}
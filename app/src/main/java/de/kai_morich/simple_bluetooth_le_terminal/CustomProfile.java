@@ -0,0 +1,74 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.UUID;
+
+/**
+ * user defined serial profile for devices not known to SerialSocket
+ *   - stored in shared preferences, registered with SerialSocket.registerProfile on service start and when changed
+ *   - credit characteristics enable Telit TIO flow control, else they are null
+ */
+class CustomProfile {
+
+    private static final String PREFERENCES_NAME = "custom_profile";
+
+    final UUID service, read, write, readCredits, writeCredits;
+
+    /**
+     * @throws IllegalArgumentException for invalid UUID or credit characteristics given only partially
+     */
+    CustomProfile(String service, String read, String write, String readCredits, String writeCredits) {
+        this.service = UUID.fromString(service.trim());
+        this.read = UUID.fromString(read.trim());
+        this.write = write.trim().isEmpty() ? this.read : UUID.fromString(write.trim());
+        if(readCredits.trim().isEmpty() != writeCredits.trim().isEmpty())
+            throw new IllegalArgumentException("both or no credit characteristics required");
+        this.readCredits = readCredits.trim().isEmpty() ? null : UUID.fromString(readCredits.trim());
+        this.writeCredits = writeCredits.trim().isEmpty() ? null : UUID.fromString(writeCredits.trim());
+    }
+
+    /**
+     * @return null if not defined or invalid
+     */
+    static CustomProfile load(Context context) {
+        SharedPreferences preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        if(!preferences.contains("service"))
+            return null;
+        try {
+            return new CustomProfile(preferences.getString("service", ""), preferences.getString("read", ""),
+                    preferences.getString("write", ""), preferences.getString("readCredits", ""),
+                    preferences.getString("writeCredits", ""));
+        } catch (Exception ignored) {
+            return null;
+        }
+    }
+
+    static void register(Context context) {
+        CustomProfile profile = load(context);
+        if(profile != null)
+            SerialSocket.registerProfile(profile.service, profile.read, profile.write, profile.readCredits, profile.writeCredits);
+    }
+
+    /**
+     * replace stored profile, null = remove
+     */
+    static void save(Context context, CustomProfile profile) {
+        CustomProfile previous = load(context);
+        if(previous != null)
+            SerialSocket.unregisterProfile(previous.service);
+        SharedPreferences.Editor editor = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE).edit();
+        if(profile == null) {
+            editor.clear().apply();
+            return;
+        }
+        editor.putString("service", profile.service.toString())
+                .putString("read", profile.read.toString())
+                .putString("write", profile.write.toString())
+                .putString("readCredits", profile.readCredits != null ? profile.readCredits.toString() : "")
+                .putString("writeCredits", profile.writeCredits != null ? profile.writeCredits.toString() : "")
+                .apply();
+        SerialSocket.registerProfile(profile.service, profile.read, profile.write, profile.readCredits, profile.writeCredits);
+    }
+}
@@ -25,8 +25,10 @@ import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ArrayAdapter;
+import android.widget.EditText;
 import android.widget.ListView;
 import android.widget.TextView;
+import android.widget.Toast;
 
 import java.util.ArrayList;
 import java.util.Collections;
@@ -169,11 +171,50 @@ public class DevicesFragment extends ListFragment {
             intent.setAction(android.provider.Settings.ACTION_BLUETOOTH_SETTINGS);
             startActivity(intent);
             return true;
+        } else if (id == R.id.custom_profile) {
+            showCustomProfile();
+            return true;
         } else {
             return super.onOptionsItemSelected(item);
         }
     }
 
+    /**
+     * serial service and characteristics for devices not known to SerialSocket, used from next connect
+     */
+    private void showCustomProfile() {
+        Context context = getActivity().getApplicationContext();
+        View view = getActivity().getLayoutInflater().inflate(R.layout.dialog_profile, null);
+        EditText serviceText = view.findViewById(R.id.profile_service);
+        EditText readText = view.findViewById(R.id.profile_read);
+        EditText writeText = view.findViewById(R.id.profile_write);
+        EditText readCreditsText = view.findViewById(R.id.profile_read_credits);
+        EditText writeCreditsText = view.findViewById(R.id.profile_write_credits);
+        CustomProfile profile = CustomProfile.load(context);
+        if(profile != null) {
+            serviceText.setText(profile.service.toString());
+            readText.setText(profile.read.toString());
+            writeText.setText(profile.write.toString());
+            readCreditsText.setText(profile.readCredits != null ? profile.readCredits.toString() : "");
+            writeCreditsText.setText(profile.writeCredits != null ? profile.writeCredits.toString() : "");
+        }
+        AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
+        builder.setTitle("Custom profile");
+        builder.setView(view);
+        builder.setPositiveButton("Save", (dialog, which) -> {
+            try {
+                CustomProfile.save(context, new CustomProfile(serviceText.getText().toString(), readText.getText().toString(),
+                        writeText.getText().toString(), readCreditsText.getText().toString(), writeCreditsText.getText().toString()));
+            } catch (IllegalArgumentException e) {
+                Toast.makeText(getActivity(), e.getMessage(), Toast.LENGTH_SHORT).show();
+            }
+        });
+        if(profile != null)
+            builder.setNeutralButton("Remove", (dialog, which) -> CustomProfile.save(context, null));
+        builder.setNegativeButton(android.R.string.cancel, null);
+        builder.create().show();
+    }
+
     @SuppressLint("StaticFieldLeak") // AsyncTask needs reference to this fragment
     private void startScan() {
         if(scanState != ScanState.NONE)
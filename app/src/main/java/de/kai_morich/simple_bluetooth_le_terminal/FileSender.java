@@ -0,0 +1,98 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * send stream content in background thread with SerialSession.writeAsync()
+ *   - at most WINDOW chunks are unconfirmed, so the file does not use up the write budget
+ *     and the terminal can still send in between
+ *   - result is reported in main thread
+ */
+class FileSender implements Runnable {
+
+    interface Listener {
+        void onFileSent(long bytes, long millis, Exception e); // in main thread, e = null on success
+    }
+
+    private static final int CHUNK_SIZE = 4096;
+    private static final int WINDOW = 4;
+
+    private final SerialSession session;
+    private final InputStream input;
+    private final Listener listener;
+    private final Handler mainLooper;
+    private volatile boolean cancelled;
+    private volatile boolean running;
+
+    FileSender(SerialSession session, InputStream input, Listener listener) {
+        this.session = session;
+        this.input = input;
+        this.listener = listener;
+        mainLooper = new Handler(Looper.getMainLooper());
+    }
+
+    void start() {
+        running = true;
+        new Thread(this, "FileSender").start();
+    }
+
+    void cancel() {
+        cancelled = true;
+    }
+
+    boolean isRunning() { return running; }
+
+    @Override
+    public void run() {
+        ArrayDeque<WriteFuture> futures = new ArrayDeque<>();
+        byte[] chunk = new byte[CHUNK_SIZE]; // copied by writeAsync
+        long start = SystemClock.elapsedRealtime();
+        long bytes = 0;
+        Exception error = null;
+        try (InputStream input = this.input) {
+            int length;
+            while (!cancelled && (length = input.read(chunk)) > 0) {
+                byte[] data = length == chunk.length ? chunk : Arrays.copyOf(chunk, length);
+                if(futures.size() == WINDOW)
+                    futures.poll().get();
+                while(true) {
+                    try {
+                        futures.add(session.writeAsync(data));
+                        break;
+                    } catch (WriteBudgetException e) { // terminal writes in between
+                        if(futures.isEmpty())
+                            throw e;
+                        futures.poll().get();
+                    }
+                }
+                bytes += length;
+            }
+            if(!cancelled)
+                session.flush(); // last partial packet without coalescing delay
+            while (!futures.isEmpty())
+                futures.poll().get();
+            if(cancelled)
+                error = new IOException("cancelled");
+        } catch (ExecutionException e) {
+            error = (Exception) e.getCause();
+        } catch (Exception e) {
+            error = e;
+        }
+        long millis = SystemClock.elapsedRealtime() - start;
+        long sent = bytes;
+        Exception result = error;
+        mainLooper.post(() -> {
+            running = false;
+            listener.onFileSent(sent, millis, result);
+        });
+    }
+
+}
@@ -0,0 +1,280 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import java.util.Arrays;
+
+/**
+ * split received byte stream into frames, independent of BLE packet boundaries
+ *   - data is accumulated in a reused buffer, frames completely inside one read are passed without copy
+ *   - frames longer than maxFrameSize and malformed frames are dropped and counted as errors
+ *
+ * frame data is only valid during SerialListener.onSerialFrame
+ */
+abstract class FrameDecoder {
+
+    final int maxFrameSize;
+    byte[] buffer;
+    int length;
+    boolean discard; // drop until end of current frame
+    private long frames, errors;
+
+    FrameDecoder(int maxFrameSize) {
+        this.maxFrameSize = maxFrameSize;
+        buffer = new byte[Math.min(maxFrameSize, 1024)];
+    }
+
+    long getFrames() { return frames; }
+    long getErrors() { return errors; }
+
+    void reset() {
+        length = 0;
+        discard = false;
+    }
+
+    abstract void decode(byte[] data, int offset, int length, SerialListener listener);
+
+    void append(byte b) {
+        if(discard)
+            return;
+        if(length == maxFrameSize) {
+            error();
+            return;
+        }
+        if(length == buffer.length)
+            buffer = Arrays.copyOf(buffer, Math.min(buffer.length * 2, maxFrameSize));
+        buffer[length++] = b;
+    }
+
+    void append(byte[] data, int offset, int len) {
+        if(discard)
+            return;
+        if(length + len > maxFrameSize) {
+            error();
+            return;
+        }
+        if(length + len > buffer.length)
+            buffer = Arrays.copyOf(buffer, Math.min(Math.max(buffer.length * 2, length + len), maxFrameSize));
+        System.arraycopy(data, offset, buffer, length, len);
+        length += len;
+    }
+
+    void error() {
+        if(!discard)
+            errors++;
+        discard = true;
+        length = 0;
+    }
+
+    /**
+     * end of frame in accumulated data
+     */
+    void frame(SerialListener listener) {
+        if(!discard)
+            frame(buffer, 0, length, listener);
+        length = 0;
+        discard = false;
+    }
+
+    void frame(byte[] data, int offset, int len, SerialListener listener) {
+        frames++;
+        listener.onSerialFrame(data, offset, len);
+    }
+
+    /**
+     * frames terminated by delimiter, e.g. '\n'. Delimiter and optional preceding '\r' are removed
+     */
+    static class Line extends FrameDecoder {
+        private final byte delimiter;
+
+        Line(byte delimiter, int maxFrameSize) {
+            super(maxFrameSize);
+            this.delimiter = delimiter;
+        }
+
+        @Override
+        void decode(byte[] data, int offset, int len, SerialListener listener) {
+            int end = offset + len;
+            int start = offset;
+            for (int i = offset; i < end; i++) {
+                if(data[i] != delimiter)
+                    continue;
+                if(length == 0 && !discard) {
+                    int frameEnd = i > start && data[i - 1] == '\r' && delimiter == '\n' ? i - 1 : i;
+                    if(frameEnd - start > maxFrameSize) {
+                        error();
+                        frame(listener);
+                    } else {
+                        frame(data, start, frameEnd - start, listener);
+                    }
+                } else {
+                    append(data, start, i - start);
+                    if(length > 0 && buffer[length - 1] == '\r' && delimiter == '\n')
+                        length--;
+                    frame(listener);
+                }
+                start = i + 1;
+            }
+            if(start < end)
+                append(data, start, end - start);
+        }
+    }
+
+    /**
+     * frames with 1, 2 or 4 byte length header, big or little endian. Header is removed
+     */
+    static class LengthPrefixed extends FrameDecoder {
+        private final int headerSize;
+        private final boolean bigEndian;
+        private int header, headerBytes, received;
+
+        LengthPrefixed(int headerSize, boolean bigEndian, int maxFrameSize) {
+            super(maxFrameSize);
+            if(headerSize != 1 && headerSize != 2 && headerSize != 4)
+                throw new IllegalArgumentException("invalid header size");
+            this.headerSize = headerSize;
+            this.bigEndian = bigEndian;
+        }
+
+        @Override
+        void reset() {
+            super.reset();
+            header = 0;
+            headerBytes = 0;
+            received = 0;
+        }
+
+        @Override
+        void decode(byte[] data, int offset, int len, SerialListener listener) {
+            int end = offset + len;
+            int i = offset;
+            while (i < end) {
+                if(headerBytes < headerSize) {
+                    int b = data[i++] & 0xff;
+                    header = bigEndian ? header << 8 | b : header | b << (8 * headerBytes);
+                    if(++headerBytes < headerSize)
+                        continue;
+                    if(header < 0) {
+                        error(); // stream cannot be resynchronized
+                        reset();
+                        return;
+                    }
+                    if(header > maxFrameSize)
+                        error(); // skip frame
+                    received = 0;
+                }
+                int n = Math.min(header - received, end - i); // 0 for empty frames
+                if(received == 0 && n == header && !discard) {
+                    frame(data, i, n, listener);
+                } else {
+                    append(data, i, n);
+                    if(received + n == header)
+                        frame(listener);
+                }
+                received += n;
+                i += n;
+                if(received == header) {
+                    header = 0;
+                    headerBytes = 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * RFC 1055 SLIP: END 0xC0 terminates frames, ESC 0xDB escapes END and ESC
+     */
+    static class Slip extends FrameDecoder {
+        private static final byte END = (byte) 0xC0;
+        private static final byte ESC = (byte) 0xDB;
+        private static final byte ESC_END = (byte) 0xDC;
+        private static final byte ESC_ESC = (byte) 0xDD;
+
+        private boolean escape;
+
+        Slip(int maxFrameSize) {
+            super(maxFrameSize);
+        }
+
+        @Override
+        void reset() {
+            super.reset();
+            escape = false;
+        }
+
+        @Override
+        void decode(byte[] data, int offset, int len, SerialListener listener) {
+            int end = offset + len;
+            for (int i = offset; i < end; i++) {
+                byte b = data[i];
+                if(escape) {
+                    escape = false;
+                    if(b == ESC_END) {
+                        append(END);
+                    } else if(b == ESC_ESC) {
+                        append(ESC);
+                    } else if(b == END) {
+                        error(); // truncated escape
+                        frame(listener);
+                    } else {
+                        error();
+                    }
+                } else if(b == END) {
+                    if(length > 0 || discard) // empty frames from leading END are ignored
+                        frame(listener);
+                } else if(b == ESC) {
+                    escape = true;
+                } else {
+                    append(b);
+                }
+            }
+        }
+    }
+
+    /**
+     * consistent overhead byte stuffing, frames terminated by 0x00
+     */
+    static class Cobs extends FrameDecoder {
+        private int remaining;       // data bytes left in current block
+        private boolean pendingZero; // appended if another block follows
+
+        Cobs(int maxFrameSize) {
+            super(maxFrameSize);
+        }
+
+        @Override
+        void reset() {
+            super.reset();
+            remaining = 0;
+            pendingZero = false;
+        }
+
+        @Override
+        void decode(byte[] data, int offset, int len, SerialListener listener) {
+            int end = offset + len;
+            for (int i = offset; i < end; i++) {
+                byte b = data[i];
+                if(b == 0) {
+                    if(remaining != 0)
+                        error(); // truncated block
+                    if(length > 0 || discard) // empty frames are ignored
+                        frame(listener);
+                    remaining = 0;
+                    pendingZero = false;
+                } else if(remaining == 0) {
+                    if(pendingZero)
+                        append((byte) 0);
+                    int code = b & 0xff;
+                    remaining = code - 1;
+                    pendingZero = code < 0xff;
+                } else {
+                    int n = Math.min(remaining, end - i);
+                    int zero = i;
+                    while (zero < i + n && data[zero] != 0)
+                        zero++;
+                    append(data, i, zero - i);
+                    remaining -= zero - i;
+                    i = zero - 1;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.HashMap;
+import java.util.UUID;
+
+/**
+ * persistent per device cache of connect results, used to shorten the connect phase
+ *   - serial service, so reconnect does not scan all services
+ *   - negotiated MTU, so requestMtu can be skipped for devices that stayed at the default MTU 23.
+ *     Devices with larger MTU still need the exchange, as the MTU is negotiated per connection
+ * the descriptor write enabling notification or indication is always required, so no GATT operation
+ * is saved apart from the service lookup and the MTU request of MTU 23 devices
+ *
+ * entries are replaced after each successful connect and removed on mismatch
+ */
+class GattCache {
+
+    static class Entry {
+        final UUID service;
+        final int mtu;
+        final long mtuTime; // System.currentTimeMillis of successful MTU exchange, 0 if failed or not done
+
+        Entry(UUID service, int mtu, long mtuTime) {
+            this.service = service;
+            this.mtu = mtu;
+            this.mtuTime = mtuTime;
+        }
+    }
+
+    private static final String PREFERENCES_NAME = "gatt_cache";
+    private static GattCache instance;
+
+    private final SharedPreferences preferences;
+    private final HashMap<String, Entry> entries = new HashMap<>();
+
+    static synchronized GattCache getInstance(Context context) {
+        if(instance == null)
+            instance = new GattCache(context.getApplicationContext());
+        return instance;
+    }
+
+    private GattCache(Context context) {
+        preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        for (String address : preferences.getAll().keySet()) {
+            try {
+                String[] values = preferences.getString(address, "").split(",");
+                entries.put(address, new Entry(UUID.fromString(values[0]), Integer.parseInt(values[1]),
+                        Long.parseLong(values[2]))); // entries of older version have trailing indicate flag
+            } catch (Exception ignored) { // invalid entry, e.g. from older version
+            }
+        }
+    }
+
+    synchronized Entry get(String address) {
+        return entries.get(address);
+    }
+
+    synchronized void put(String address, Entry entry) {
+        entries.put(address, entry);
+        preferences.edit()
+                .putString(address, entry.service + "," + entry.mtu + "," + entry.mtuTime)
+                .apply();
+    }
+
+    synchronized void remove(String address) {
+        if(entries.remove(address) != null)
+            preferences.edit().remove(address).apply();
+    }
+}
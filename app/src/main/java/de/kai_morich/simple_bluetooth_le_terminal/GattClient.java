@@ -0,0 +1,80 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.content.Context;
+import android.os.Build;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * GATT operations used by SerialSocket and its device delegates.
+ * BluetoothGatt in the app, a simulated peer in tests, that calls the BluetoothGattCallback methods with null gatt
+ */
+interface GattClient {
+
+    interface Factory {
+        GattClient connect(Context context, BluetoothDevice device, BluetoothGattCallback callback); // null if failed
+    }
+
+    Factory ANDROID = (context, device, callback) -> {
+        BluetoothGatt gatt;
+        if (Build.VERSION.SDK_INT < 23)
+            gatt = device.connectGatt(context, false, callback);
+        else
+            gatt = device.connectGatt(context, false, callback, BluetoothDevice.TRANSPORT_LE);
+        return gatt != null ? new AndroidGattClient(gatt) : null;
+    };
+
+    BluetoothDevice getDevice();
+    List<BluetoothGattService> getServices();
+    BluetoothGattService getService(UUID uuid);
+    boolean discoverServices();
+    boolean requestMtu(int mtu);
+    boolean setCharacteristicNotification(BluetoothGattCharacteristic characteristic, boolean enable);
+    boolean writeDescriptor(BluetoothGattDescriptor descriptor);
+    boolean writeCharacteristic(BluetoothGattCharacteristic characteristic);
+    boolean requestConnectionPriority(int priority);
+    void setPreferredPhy(int txPhy, int rxPhy, int phyOptions);
+    boolean isLe2MPhySupported(); // by local adapter
+    void disconnect();
+    void close();
+
+    class AndroidGattClient implements GattClient {
+        private final BluetoothGatt gatt;
+
+        AndroidGattClient(BluetoothGatt gatt) {
+            this.gatt = gatt;
+        }
+
+        @Override public BluetoothDevice getDevice() { return gatt.getDevice(); }
+        @Override public List<BluetoothGattService> getServices() { return gatt.getServices(); }
+        @Override public BluetoothGattService getService(UUID uuid) { return gatt.getService(uuid); }
+        @Override public boolean discoverServices() { return gatt.discoverServices(); }
+        @TargetApi(Build.VERSION_CODES.LOLLIPOP) // callers check SDK version
+        @Override public boolean requestMtu(int mtu) { return gatt.requestMtu(mtu); }
+        @Override public boolean setCharacteristicNotification(BluetoothGattCharacteristic characteristic, boolean enable) {
+            return gatt.setCharacteristicNotification(characteristic, enable);
+        }
+        @Override public boolean writeDescriptor(BluetoothGattDescriptor descriptor) { return gatt.writeDescriptor(descriptor); }
+        @Override public boolean writeCharacteristic(BluetoothGattCharacteristic characteristic) { return gatt.writeCharacteristic(characteristic); }
+        @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+        @Override public boolean requestConnectionPriority(int priority) { return gatt.requestConnectionPriority(priority); }
+        @TargetApi(Build.VERSION_CODES.O)
+        @Override public void setPreferredPhy(int txPhy, int rxPhy, int phyOptions) { gatt.setPreferredPhy(txPhy, rxPhy, phyOptions); }
+        @TargetApi(Build.VERSION_CODES.O)
+        @Override public boolean isLe2MPhySupported() {
+            BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+            return adapter != null && adapter.isLe2MPhySupported();
+        }
+        @Override public void disconnect() { gatt.disconnect(); }
+        @Override public void close() { gatt.close(); }
+    }
+}
@@ -0,0 +1,252 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+/**
+ * serialize GATT operations of one BluetoothGatt, as Android allows only one outstanding operation
+ *   - control operations (discovery, MTU, descriptor, credits, connection priority, PHY) run one at a time in FIFO order
+ *   - control operations have priority, data writes wait until the queue is empty
+ *     and control operations wait until the pending data write is confirmed
+ *   - operations not confirmed within the timeout of their type fail the connection
+ *     with a transient ConnectionLostException, so automatic reconnect retries
+ *
+ * callbacks to Listener are called without lock held, in the thread completing the operation.
+ * Timeouts run in the Scheduler thread, in the app the main thread
+ */
+class GattQueue {
+
+    enum Type {
+        Discover(10000), Mtu(5000), Descriptor(5000), Credits(5000), Priority(0), Phy(0), Data(5000);
+
+        final int timeoutMillis; // 0 = no GATT callback or callback not reliable, done when started
+
+        Type(int timeoutMillis) {
+            this.timeoutMillis = timeoutMillis;
+        }
+    }
+
+    enum Result { Started, Blocked, Failed }
+
+    interface Listener {
+        void onGattIdle(); // control operations done, data writes can continue
+        void onGattError(IOException e); // start failed or timeout
+    }
+
+    /**
+     * android.os.Handler and SystemClock.uptimeMillis in the app, a virtual clock in tests
+     */
+    interface Scheduler {
+        long uptimeMillis();
+        void postAtTime(Runnable runnable, long uptimeMillis);
+        void removeCallbacks(Runnable runnable);
+    }
+
+    interface Start {
+        boolean start(); // e.g. gatt.writeDescriptor(), false if rejected by BLE stack
+    }
+
+    static class Operation {
+        final Type type;
+        final String failMessage;
+        final Start start;
+        long queued, started;
+
+        Operation(Type type, String failMessage, Start start) {
+            this.type = type;
+            this.failMessage = failMessage;
+            this.start = start;
+        }
+    }
+
+    private final Listener listener;
+    private final Scheduler scheduler;
+    private final Runnable timeoutRunnable;
+    private final ArrayDeque<Operation> pending = new ArrayDeque<>();
+    private boolean dataPending;
+    private long dataStarted;
+    private long dataBlockedSince; // 0 = data writes not blocked by control operations
+    private Operation running;
+
+    private final long[] count = new long[Type.values().length];
+    private final long[] waitTotal = new long[Type.values().length];
+    private final long[] waitMax = new long[Type.values().length];
+    private final long[] runTotal = new long[Type.values().length];
+    private final long[] runMax = new long[Type.values().length];
+    private final long[] timeouts = new long[Type.values().length];
+
+    GattQueue(Listener listener, Scheduler scheduler) {
+        this.listener = listener;
+        this.scheduler = scheduler;
+        timeoutRunnable = this::checkTimeout;
+    }
+
+    /**
+     * queue control operation, started immediately if the queue is idle
+     */
+    void add(Operation operation) {
+        IOException error;
+        synchronized (this) {
+            operation.queued = scheduler.uptimeMillis();
+            pending.add(operation);
+            error = startNext();
+        }
+        if(error != null)
+            listener.onGattError(error);
+    }
+
+    /**
+     * called from the GATT callback of the running control operation
+     */
+    void complete(Type type) {
+        IOException error;
+        boolean idle;
+        synchronized (this) {
+            if(running == null || running.type != type)
+                return; // already failed with timeout or cleared
+            record(type, 0, scheduler.uptimeMillis() - running.started);
+            running = null;
+            error = startNext();
+            idle = running == null && pending.isEmpty();
+        }
+        if(error != null)
+            listener.onGattError(error);
+        else if(idle)
+            listener.onGattIdle();
+    }
+
+    /**
+     * start data write, if no control operation is running or pending
+     */
+    synchronized Result startData(Start start) {
+        long now = scheduler.uptimeMillis();
+        if(running != null || !pending.isEmpty()) {
+            if(dataBlockedSince == 0)
+                dataBlockedSince = now;
+            return Result.Blocked; // continues in onGattIdle
+        }
+        if(!start.start())
+            return Result.Failed;
+        long wait = 0;
+        if(dataBlockedSince != 0) {
+            wait = now - dataBlockedSince;
+            dataBlockedSince = 0;
+        }
+        dataPending = true;
+        dataStarted = now;
+        count[Type.Data.ordinal()]++;
+        waitTotal[Type.Data.ordinal()] += wait;
+        waitMax[Type.Data.ordinal()] = Math.max(waitMax[Type.Data.ordinal()], wait);
+        scheduleTimeout();
+        return Result.Started;
+    }
+
+    /**
+     * called from onCharacteristicWrite of the pending data write
+     */
+    void dataDone() {
+        IOException error;
+        synchronized (this) {
+            if(!dataPending)
+                return;
+            long run = scheduler.uptimeMillis() - dataStarted;
+            runTotal[Type.Data.ordinal()] += run;
+            runMax[Type.Data.ordinal()] = Math.max(runMax[Type.Data.ordinal()], run);
+            dataPending = false;
+            error = startNext();
+            if(running == null)
+                scheduleTimeout();
+        }
+        if(error != null)
+            listener.onGattError(error);
+    }
+
+    /**
+     * drop pending operations, e.g. on disconnect. Statistics are kept
+     */
+    synchronized void clear() {
+        pending.clear();
+        running = null;
+        dataPending = false;
+        dataBlockedSince = 0;
+        scheduler.removeCallbacks(timeoutRunnable);
+    }
+
+    /**
+     * count, queue wait and execution time in milliseconds (average/max) per operation type
+     */
+    synchronized String getStats() {
+        StringBuilder sb = new StringBuilder();
+        for (Type type : Type.values()) {
+            int i = type.ordinal();
+            if(count[i] == 0)
+                continue;
+            if(sb.length() > 0)
+                sb.append(", ");
+            sb.append(type).append(" n=").append(count[i])
+                    .append(" wait=").append(waitTotal[i] / count[i]).append('/').append(waitMax[i])
+                    .append(" run=").append(runTotal[i] / count[i]).append('/').append(runMax[i]);
+            if(timeouts[i] > 0)
+                sb.append(" timeouts=").append(timeouts[i]);
+        }
+        return sb.toString();
+    }
+
+    private IOException startNext() { // with lock held
+        while(running == null && !dataPending && !pending.isEmpty()) {
+            Operation operation = pending.poll();
+            operation.started = scheduler.uptimeMillis();
+            if(!operation.start.start())
+                return new IOException(operation.failMessage);
+            record(operation.type, operation.started - operation.queued, -1);
+            if(operation.type.timeoutMillis == 0) {
+                record(operation.type, 0, 0);
+                continue;
+            }
+            running = operation;
+            scheduleTimeout();
+        }
+        return null;
+    }
+
+    private void record(Type type, long wait, long run) { // with lock held, run = -1 on start
+        int i = type.ordinal();
+        if(run < 0) {
+            count[i]++;
+            waitTotal[i] += wait;
+            waitMax[i] = Math.max(waitMax[i], wait);
+        } else {
+            runTotal[i] += run;
+            runMax[i] = Math.max(runMax[i], run);
+        }
+    }
+
+    private void scheduleTimeout() { // with lock held
+        scheduler.removeCallbacks(timeoutRunnable);
+        if(running != null)
+            scheduler.postAtTime(timeoutRunnable, running.started + running.type.timeoutMillis);
+        else if(dataPending)
+            scheduler.postAtTime(timeoutRunnable, dataStarted + Type.Data.timeoutMillis);
+    }
+
+    private void checkTimeout() { // in main thread
+        Type type = null;
+        synchronized (this) {
+            long now = scheduler.uptimeMillis();
+            if(running != null && now >= running.started + running.type.timeoutMillis)
+                type = running.type;
+            else if(running == null && dataPending && now >= dataStarted + Type.Data.timeoutMillis)
+                type = Type.Data;
+            if(type == null) {
+                scheduleTimeout();
+                return;
+            }
+            timeouts[type.ordinal()]++;
+            pending.clear();
+            running = null;
+            dataPending = false;
+        }
+        listener.onGattError(new ConnectionLostException("gatt "+type+" operation timeout"));
+    }
+
+}
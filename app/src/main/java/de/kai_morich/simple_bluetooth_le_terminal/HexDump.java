@@ -0,0 +1,102 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import java.util.Arrays;
+
+/**
+ * hex dump of received data: offset, 16 hex bytes, ASCII column
+ *   - a partial line is rewritten in place when following data arrives
+ *   - formatted with lookup tables into a reused line buffer, no per-byte String formatting
+ *
+ * also parses hex input for sending
+ */
+class HexDump {
+
+    static final int BYTES_PER_LINE = 16;
+
+    private static final int HEX_COLUMN = 8 + 2;
+    private static final int ASCII_COLUMN = HEX_COLUMN + BYTES_PER_LINE * 3 + 1 + 1;
+    private static final int LINE_LENGTH = ASCII_COLUMN + BYTES_PER_LINE;
+    private static final char[] DIGITS = "0123456789ABCDEF".toCharArray();
+    private static final char[] HEX = new char[256 * 2];
+    private static final char[] ASCII = new char[256];
+
+    static {
+        for (int b = 0; b < 256; b++) {
+            HEX[2 * b] = DIGITS[b >> 4];
+            HEX[2 * b + 1] = DIGITS[b & 0xf];
+            ASCII[b] = b >= 0x20 && b < 0x7f ? (char) b : '.';
+        }
+    }
+
+    private final char[] line = new char[LINE_LENGTH];
+    private long offset; // of first byte in line
+    private int count;   // bytes in line
+
+    HexDump() {
+        reset();
+    }
+
+    void reset() {
+        offset = 0;
+        count = 0;
+        clearLine();
+    }
+
+    void dump(byte[] data, int off, int length, TerminalBuffer buffer) {
+        for (int i = off; i < off + length; i++) {
+            int b = data[i] & 0xff;
+            int pos = HEX_COLUMN + count * 3 + (count >= BYTES_PER_LINE / 2 ? 1 : 0);
+            line[pos] = HEX[2 * b];
+            line[pos + 1] = HEX[2 * b + 1];
+            line[ASCII_COLUMN + count] = ASCII[b];
+            if (++count == BYTES_PER_LINE) {
+                buffer.carriageReturn();
+                buffer.append(line, 0, LINE_LENGTH);
+                buffer.newLine();
+                offset += count;
+                count = 0;
+                clearLine();
+            }
+        }
+        if (count > 0) {
+            buffer.carriageReturn();
+            buffer.append(line, 0, ASCII_COLUMN + count);
+        }
+    }
+
+    private void clearLine() {
+        Arrays.fill(line, ' ');
+        for (int i = 7, o = (int) offset; i >= 0; i--, o >>>= 4)
+            line[i] = DIGITS[o & 0xf];
+    }
+
+    /**
+     * @param s hex digits, optionally separated by whitespace
+     * @throws IllegalArgumentException for invalid characters or odd number of digits
+     */
+    static byte[] parse(String s) {
+        byte[] data = new byte[s.length() / 2];
+        int length = 0;
+        int high = -1;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (Character.isWhitespace(c)) {
+                if (high >= 0)
+                    throw new IllegalArgumentException("incomplete hex byte");
+                continue;
+            }
+            int digit = Character.digit(c, 16);
+            if (digit < 0)
+                throw new IllegalArgumentException("invalid hex character '" + c + "'");
+            if (high < 0) {
+                high = digit;
+            } else {
+                data[length++] = (byte) (high << 4 | digit);
+                high = -1;
+            }
+        }
+        if (high >= 0)
+            throw new IllegalArgumentException("incomplete hex byte");
+        return Arrays.copyOf(data, length);
+    }
+}
@@ -0,0 +1,93 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * fixed memory histogram with logarithmic buckets, values in microseconds
+ *   - exact below 32, above 16 buckets per power of two, so percentiles are within ~6%
+ *   - values above ~2^41 microseconds end up in the last bucket, max is exact
+ *
+ * not thread safe, callers synchronize
+ */
+class LatencyHistogram {
+
+    private static final int SUB_BITS = 4;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int MAX_EXP = 40;
+    private static final long MAX_VALUE = (1L << (MAX_EXP + 1)) - 1;
+
+    private final long[] buckets = new long[index(MAX_VALUE) + 1];
+    private long count, sum, min, max;
+
+    void record(long value) {
+        if(value < 0)
+            value = 0;
+        buckets[index(Math.min(value, MAX_VALUE))]++;
+        min = count == 0 ? value : Math.min(min, value);
+        max = Math.max(max, value);
+        count++;
+        sum += value;
+    }
+
+    void reset() {
+        Arrays.fill(buckets, 0);
+        count = sum = min = max = 0;
+    }
+
+    long getCount() { return count; }
+    long getMin() { return min; }
+    long getMax() { return max; }
+    long getMean() { return count == 0 ? 0 : sum / count; }
+
+    /**
+     * @return upper bound of bucket containing the percentile, 0 if empty
+     */
+    long getPercentile(double percentile) {
+        if(count == 0)
+            return 0;
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for(int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if(seen >= target)
+                return Math.min(lowerBound(i + 1) - 1, max);
+        }
+        return max;
+    }
+
+    /**
+     * one line per non empty bucket: lower bound in microseconds, count
+     */
+    String toCsv() {
+        StringBuilder sb = new StringBuilder("bucket_us,count\n");
+        for(int i = 0; i < buckets.length; i++)
+            if(buckets[i] != 0)
+                sb.append(lowerBound(i)).append(',').append(buckets[i]).append('\n');
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "n=%d min=%.1f p50=%.1f p90=%.1f p99=%.1f max=%.1f ms",
+                count, min / 1000.0, getPercentile(50) / 1000.0, getPercentile(90) / 1000.0,
+                getPercentile(99) / 1000.0, max / 1000.0);
+    }
+
+    private static int index(long value) {
+        if(value < 2 * SUB_COUNT)
+            return (int) value;
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >> (exp - SUB_BITS)) & (SUB_COUNT - 1);
+        return 2 * SUB_COUNT + (exp - SUB_BITS - 1) * SUB_COUNT + sub;
+    }
+
+    private static long lowerBound(int index) {
+        if(index < 2 * SUB_COUNT)
+            return index;
+        int exp = (index - 2 * SUB_COUNT) / SUB_COUNT + SUB_BITS + 1;
+        int sub = (index - 2 * SUB_COUNT) % SUB_COUNT;
+        return (long) (SUB_COUNT + sub) << (exp - SUB_BITS);
+    }
+
+}
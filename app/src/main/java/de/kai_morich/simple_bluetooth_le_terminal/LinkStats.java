@@ -0,0 +1,91 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import java.util.Locale;
+
+/**
+ * snapshot of session counters, sampled by the UI once per second
+ *   - counters are kept by their single writer thread or under existing locks,
+ *     so sampling costs nothing while streaming
+ *   - rates are computed from two snapshots
+ */
+class LinkStats {
+
+    long time; // SystemClock.elapsedRealtime
+    long readBytes, readNotifications;
+    long writeBytes, writePackets, writePacketBytes, writePacketsSaved;
+    int writeQueued; // bytes not yet confirmed by onCharacteristicWrite
+    int mtu, payloadSize;
+    int readCredits = -1, writeCredits = -1; // -1 = no credit based flow control
+    int reconnects;
+    long queueDropped, queueSpilled; // bytes queued while detached
+    String link = ""; // priority, PHY and connection parameters
+
+    void clear() {
+        time = 0;
+        readBytes = readNotifications = 0;
+        writeBytes = writePackets = writePacketBytes = writePacketsSaved = 0;
+        writeQueued = 0;
+        mtu = payloadSize = 0;
+        readCredits = writeCredits = -1;
+        reconnects = 0;
+        queueDropped = queueSpilled = 0;
+        link = "";
+    }
+
+    void copyFrom(LinkStats other) {
+        time = other.time;
+        readBytes = other.readBytes;
+        readNotifications = other.readNotifications;
+        writeBytes = other.writeBytes;
+        writePackets = other.writePackets;
+        writePacketBytes = other.writePacketBytes;
+        writePacketsSaved = other.writePacketsSaved;
+        writeQueued = other.writeQueued;
+        mtu = other.mtu;
+        payloadSize = other.payloadSize;
+        readCredits = other.readCredits;
+        writeCredits = other.writeCredits;
+        reconnects = other.reconnects;
+        queueDropped = other.queueDropped;
+        queueSpilled = other.queueSpilled;
+        link = other.link;
+    }
+
+    /**
+     * rates since previous snapshot, fill = average packet size relative to payload size
+     */
+    String format(LinkStats previous) {
+        long millis = Math.max(time - previous.time, 1);
+        long notifications = readNotifications - previous.readNotifications;
+        long packets = Math.max(writePackets - previous.writePackets, 0); // socket counters restart on reconnect
+        long packetBytes = Math.max(writePacketBytes - previous.writePacketBytes, 0);
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "rx %7.1f kB/s %5d notif/s fill %3d%%",
+                (readBytes - previous.readBytes) / (double) millis,
+                notifications * 1000 / millis,
+                fill(readBytes - previous.readBytes, notifications)));
+        sb.append(String.format(Locale.US, "\ntx %7.1f kB/s %5d pkt/s   fill %3d%% queue %d",
+                (writeBytes - previous.writeBytes) / (double) millis,
+                packets * 1000 / millis,
+                fill(packetBytes, packets),
+                writeQueued));
+        if(writePacketsSaved > 0)
+            sb.append(" saved ").append(writePacketsSaved).append(" pkt");
+        sb.append("\nmtu ").append(mtu);
+        if(readCredits >= 0)
+            sb.append(" credits rx ").append(readCredits).append(" tx ").append(writeCredits);
+        sb.append(" reconnects ").append(reconnects);
+        if(queueDropped > 0 || queueSpilled > 0)
+            sb.append("\nqueue dropped ").append(queueDropped).append(" spilled ").append(queueSpilled).append(" bytes");
+        if(!link.isEmpty())
+            sb.append('\n').append(link);
+        return sb.toString();
+    }
+
+    private int fill(long bytes, long packets) {
+        if(packets == 0 || payloadSize == 0)
+            return 0;
+        return (int) (bytes * 100 / packets / payloadSize);
+    }
+
+}
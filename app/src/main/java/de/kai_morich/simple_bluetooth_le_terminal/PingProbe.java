@@ -0,0 +1,206 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Locale;
+
+/**
+ * round trip latency probe for devices echoing received data
+ *   - probe payload is "#P" + 8 hex digits sequence + 16 hex digits send time + padding + newline
+ *   - echoes are matched in SerialSession.onSerialRead, before read batching delays them
+ *   - sent in main thread at fixed rate, probes not echoed until TIMEOUT after the last one are lost
+ *   - probes rejected with WriteBudgetException are not sent and retried after BUSY_RETRY
+ */
+class PingProbe {
+
+    interface Listener {
+        void onPingDone(PingProbe probe, Exception e); // in main thread, e = write error or null
+    }
+
+    static final int MIN_SIZE = 26; // without newline
+    static final int MAX_COUNT = 100000;
+    private static final int TIMEOUT = 2000;
+    private static final int BUSY_RETRY = 50;
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes();
+
+    private final int count, size, intervalMillis;
+    private final byte[] newline;
+    private final Handler handler;
+    private final Runnable sendRunnable, doneRunnable;
+    private final LatencyHistogram histogram = new LatencyHistogram();
+    private final BitSet echoed;
+    private final byte[] match = new byte[24];
+
+    private SerialSession session;
+    private Listener listener;
+    private long startTime;
+    private int sent, received, duplicates, busy;
+    private int matchPos = -1; // -1 = searching '#', 0 = expecting 'P', 1.. hex digits
+    private boolean running;
+
+    /**
+     * @param size payload size including newline, at least MIN_SIZE + newline length
+     */
+    PingProbe(int count, int size, int intervalMillis, String newline) {
+        this.newline = newline.getBytes();
+        if(count < 1 || count > MAX_COUNT)
+            throw new IllegalArgumentException("count not in 1.."+MAX_COUNT);
+        if(size < MIN_SIZE + this.newline.length)
+            throw new IllegalArgumentException("size less than "+(MIN_SIZE + this.newline.length));
+        if(intervalMillis < 0)
+            throw new IllegalArgumentException("negative interval");
+        this.count = count;
+        this.size = size;
+        this.intervalMillis = intervalMillis;
+        echoed = new BitSet(count);
+        handler = new Handler(Looper.getMainLooper());
+        sendRunnable = this::send;
+        doneRunnable = () -> done(null);
+    }
+
+    void start(SerialSession session, Listener listener) {
+        this.session = session;
+        this.listener = listener;
+        running = true;
+        session.setPingProbe(this);
+        startTime = SystemClock.uptimeMillis();
+        send();
+    }
+
+    void stop() {
+        if(!running)
+            return;
+        running = false;
+        handler.removeCallbacks(sendRunnable);
+        handler.removeCallbacks(doneRunnable);
+        session.setPingProbe(null);
+    }
+
+    boolean isRunning() { return running; }
+
+    private void send() {
+        if(!running)
+            return;
+        byte[] data = new byte[size];
+        Arrays.fill(data, (byte) '.');
+        data[0] = '#';
+        data[1] = 'P';
+        putHex(data, 2, sent, 8);
+        putHex(data, 10, System.nanoTime(), 16);
+        System.arraycopy(newline, 0, data, size - newline.length, newline.length);
+        try {
+            session.write(data);
+        } catch (WriteBudgetException e) { // link busy, e.g. file send in parallel
+            synchronized (this) {
+                busy++;
+            }
+            handler.postDelayed(sendRunnable, BUSY_RETRY);
+            return;
+        } catch (IOException e) {
+            done(e);
+            return;
+        }
+        synchronized (this) {
+            sent++;
+        }
+        if(sent < count)
+            handler.postAtTime(sendRunnable, startTime + (long) sent * intervalMillis);
+        else
+            handler.postDelayed(doneRunnable, TIMEOUT);
+    }
+
+    private void done(Exception e) {
+        if(!running)
+            return;
+        stop();
+        listener.onPingDone(this, e);
+    }
+
+    /**
+     * called in binder thread with received data
+     */
+    void onRead(byte[] data) {
+        long now = System.nanoTime();
+        boolean complete = false;
+        synchronized (this) {
+            for (byte b : data) {
+                if(matchPos < 0) {
+                    if(b == '#')
+                        matchPos = 0;
+                } else if(matchPos == 0) {
+                    matchPos = b == 'P' ? 1 : (b == '#' ? 0 : -1);
+                } else if(hexValue(b) < 0) {
+                    matchPos = b == '#' ? 0 : -1;
+                } else {
+                    match[matchPos - 1] = b;
+                    if(++matchPos > match.length) {
+                        matchPos = -1;
+                        complete |= matched(now);
+                    }
+                }
+            }
+        }
+        if(complete)
+            handler.post(() -> {
+                handler.removeCallbacks(doneRunnable);
+                done(null);
+            });
+    }
+
+    private boolean matched(long now) { // with lock held
+        long seq = getHex(match, 0, 8);
+        long time = getHex(match, 8, 16);
+        if(seq >= count)
+            return false;
+        if(echoed.get((int) seq)) {
+            duplicates++;
+            return false;
+        }
+        echoed.set((int) seq);
+        received++;
+        histogram.record((now - time) / 1000);
+        return received == count;
+    }
+
+    synchronized String getSummary() {
+        return String.format(Locale.US, "ping %d/%d received, %d lost, %d duplicates, %d not sent (busy), %s",
+                received, sent, sent - received, duplicates, busy, histogram);
+    }
+
+    /**
+     * summary, settings and histogram buckets as CSV text
+     */
+    synchronized String export() {
+        return getSummary() + "\n"
+                + "count=" + count + " size=" + size + " interval=" + intervalMillis + "ms"
+                + " mean=" + histogram.getMean() + "us\n"
+                + histogram.toCsv();
+    }
+
+    private static void putHex(byte[] data, int offset, long value, int digits) {
+        for(int i = digits - 1; i >= 0; i--) {
+            data[offset + i] = HEX[(int) (value & 0xf)];
+            value >>>= 4;
+        }
+    }
+
+    private static long getHex(byte[] data, int offset, int digits) {
+        long value = 0;
+        for(int i = 0; i < digits; i++)
+            value = (value << 4) | hexValue(data[offset + i]);
+        return value;
+    }
+
+    private static int hexValue(byte b) {
+        if(b >= '0' && b <= '9') return b - '0';
+        if(b >= 'A' && b <= 'F') return b - 'A' + 10;
+        if(b >= 'a' && b <= 'f') return b - 'a' + 10;
+        return -1;
+    }
+
+}
@@ -0,0 +1,126 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import java.util.Random;
+
+/**
+ * automatic reconnect of a SerialSession after transient connection loss
+ *   - exponential backoff with equal jitter, so multiple devices or apps do not retry in sync
+ *   - failed attempts are retried while the error is transient, up to maxAttempts
+ *   - the final error is passed to Host.onReconnectFailed, independent of the session connect state
+ *
+ * times in milliseconds, passed by caller. Used in main thread, except begin() and isReconnecting()
+ */
+class ReconnectController {
+
+    static final int MIN_DELAY = 500;
+    static final int MAX_DELAY = 30000;
+
+    interface Host {
+        void connect() throws Exception; // start connect phase with new socket
+        void close(); // drop socket of failed attempt
+        void schedule(Runnable runnable, int delayMillis);
+        void cancel(Runnable runnable);
+        void onReconnectFailed(ConnectionLostException e);
+    }
+
+    private final Host host;
+    private final Random random;
+    private final Runnable attemptRunnable = this::attempt;
+
+    private int maxAttempts; // 0 = no automatic reconnect
+    private volatile boolean reconnecting;
+    private int attempt;
+    private long start;
+    private int reconnects, attempts, failures;
+    private long lastMillis, maxMillis;
+
+    ReconnectController(Host host, Random random) {
+        this.host = host;
+        this.random = random;
+    }
+
+    void setMaxAttempts(int maxAttempts) { this.maxAttempts = maxAttempts; }
+    int getMaxAttempts() { return maxAttempts; }
+    boolean isReconnecting() { return reconnecting; }
+    int getAttempt() { return attempt; }
+
+    int getReconnects() { return reconnects; }
+    int getAttempts() { return attempts; }
+    int getFailures() { return failures; }
+    long getLastMillis() { return lastMillis; }
+    long getMaxMillis() { return maxMillis; }
+
+    /**
+     * @return true if reconnect is started for this connection loss, then start() has to follow in main thread
+     */
+    boolean begin(Exception e) { // in any thread
+        if(maxAttempts == 0 || !ConnectionLostException.isTransient(e))
+            return false;
+        reconnecting = true;
+        return true;
+    }
+
+    void start(long now) {
+        if(!reconnecting)
+            return;
+        attempt = 0;
+        start = now;
+        scheduleAttempt();
+    }
+
+    /**
+     * disconnect by user, pending attempt is canceled
+     */
+    void stop() {
+        reconnecting = false;
+        host.cancel(attemptRunnable);
+    }
+
+    private void scheduleAttempt() {
+        int delay = MIN_DELAY << Math.min(attempt, 16);
+        delay = Math.min(delay, MAX_DELAY);
+        delay = delay / 2 + random.nextInt(delay / 2 + 1);
+        host.schedule(attemptRunnable, delay);
+    }
+
+    private void attempt() {
+        if(!reconnecting)
+            return;
+        attempt++;
+        attempts++;
+        try {
+            host.connect();
+        } catch (Exception e) {
+            failed(e);
+        }
+    }
+
+    /**
+     * connect error or connection loss of the new connection, before connected()
+     */
+    void failed(Exception e) {
+        if(!reconnecting)
+            return;
+        host.close();
+        if(attempt < maxAttempts && ConnectionLostException.isTransient(e)) {
+            scheduleAttempt();
+            return;
+        }
+        reconnecting = false;
+        failures++;
+        host.onReconnectFailed(new ConnectionLostException("reconnect failed after "+attempt+" attempts: "+e.getMessage(), e));
+    }
+
+    /**
+     * @return false if not reconnecting, e.g. stopped meanwhile
+     */
+    boolean connected(long now) {
+        if(!reconnecting)
+            return false;
+        reconnecting = false;
+        reconnects++;
+        lastMillis = now - start;
+        maxMillis = Math.max(maxMillis, lastMillis);
+        return true;
+    }
+}
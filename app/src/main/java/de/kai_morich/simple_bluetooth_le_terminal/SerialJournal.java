@@ -0,0 +1,188 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * append-only journal of sent and received data in fixed size memory mapped segment files
+ *   - record: int length, long timestamp (System.nanoTime), byte direction, payload
+ *   - length 0 marks the end of a segment, as new segments are zero filled
+ *   - oldest segments are deleted when more than maxSegments exist
+ *
+ * data is in the page cache after append(), so it survives a killed process without explicit flush.
+ * close() forces the current segment to storage, to also survive a power loss
+ */
+class SerialJournal implements Closeable {
+
+    static final byte RX = 0;
+    static final byte TX = 1;
+
+    private static final int HEADER_SIZE = 4 + 8 + 1;
+    private static final String PREFIX = "journal-";
+    private static final String SUFFIX = ".seg";
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    static class Record {
+        long timestamp;
+        byte direction;
+        byte[] data = new byte[256];
+        int length;
+    }
+
+    private final File dir;
+    private final int segmentSize;
+    private final int maxSegments;
+    private long segmentNumber;
+    private MappedByteBuffer segment;
+
+    SerialJournal(File dir, int segmentSize, int maxSegments) throws IOException {
+        if(segmentSize <= HEADER_SIZE || maxSegments < 1)
+            throw new IllegalArgumentException("invalid journal size");
+        if(!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("cannot create journal directory");
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+        File[] files = segments(dir);
+        segmentNumber = files.length > 0 ? number(files[files.length-1]) : 0;
+        rotate();
+    }
+
+    /**
+     * called from binder thread for rx and any thread for tx
+     */
+    synchronized void append(byte direction, byte[] data, int offset, int length) throws IOException {
+        if(segment == null)
+            throw new IOException("journal closed");
+        long timestamp = System.nanoTime();
+        while (length > 0) {
+            if(segment.remaining() <= HEADER_SIZE)
+                rotate();
+            int len = Math.min(length, segment.remaining() - HEADER_SIZE);
+            int position = segment.position();
+            segment.position(position + 4);
+            segment.putLong(timestamp);
+            segment.put(direction);
+            segment.put(data, offset, len);
+            segment.putInt(position, len); // written last, so readers never see partial records
+            offset += len;
+            length -= len;
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if(segment != null)
+            segment.force();
+        segment = null; // unmapped by GC
+    }
+
+    static Reader reader(File dir) {
+        return new Reader(segments(dir));
+    }
+
+    /**
+     * write all records as text lines: seconds since first record, RX or TX, data as hex.
+     * System.nanoTime restarts with the device, so times jump between journals of different boots
+     * @return number of records
+     */
+    static long export(File dir, Writer writer) throws IOException {
+        Reader reader = reader(dir);
+        Record record = new Record();
+        StringBuilder sb = new StringBuilder();
+        long first = 0, count = 0;
+        while (reader.next(record)) {
+            if(count++ == 0)
+                first = record.timestamp;
+            sb.setLength(0);
+            sb.append(String.format(Locale.US, "%.6f %s ", (record.timestamp - first) / 1e9,
+                    record.direction == TX ? "TX" : "RX"));
+            for(int i = 0; i < record.length; i++)
+                sb.append(HEX[(record.data[i] >> 4) & 0xf]).append(HEX[record.data[i] & 0xf]);
+            sb.append('\n');
+            writer.append(sb);
+        }
+        writer.flush();
+        return count;
+    }
+
+    /**
+     * read all records in order, starting with the oldest segment
+     */
+    static class Reader {
+        private final File[] files;
+        private int fileIndex;
+        private MappedByteBuffer segment;
+
+        private Reader(File[] files) {
+            this.files = files;
+        }
+
+        /**
+         * @return false at end of journal
+         */
+        boolean next(Record record) throws IOException {
+            while (true) {
+                if(segment == null) {
+                    if(fileIndex >= files.length)
+                        return false;
+                    segment = map(files[fileIndex++], FileChannel.MapMode.READ_ONLY, 0);
+                }
+                int length = segment.remaining() > HEADER_SIZE ? segment.getInt(segment.position()) : 0;
+                if(length <= 0 || length > segment.remaining() - HEADER_SIZE) {
+                    segment = null;
+                    continue;
+                }
+                segment.position(segment.position() + 4);
+                record.timestamp = segment.getLong();
+                record.direction = segment.get();
+                if(record.data.length < length)
+                    record.data = Arrays.copyOf(record.data, Math.max(length, record.data.length * 2));
+                segment.get(record.data, 0, length);
+                record.length = length;
+                return true;
+            }
+        }
+    }
+
+    private void rotate() throws IOException {
+        segmentNumber++;
+        File file = new File(dir, String.format("%s%016x%s", PREFIX, segmentNumber, SUFFIX));
+        segment = map(file, FileChannel.MapMode.READ_WRITE, segmentSize);
+        File[] files = segments(dir);
+        for(int i = 0; i < files.length - maxSegments; i++) {
+            //noinspection ResultOfMethodCallIgnored
+            files[i].delete();
+        }
+    }
+
+    private static MappedByteBuffer map(File file, FileChannel.MapMode mode, int size) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, mode == FileChannel.MapMode.READ_ONLY ? "r" : "rw")) {
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buffer = channel.map(mode, 0, size > 0 ? size : channel.size()); // mapping stays valid after close
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            return buffer;
+        }
+    }
+
+    private static File[] segments(File dir) {
+        File[] files = dir.listFiles((d, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+        if(files == null)
+            return new File[0];
+        Arrays.sort(files); // fixed width hex numbers sort by name
+        return files;
+    }
+
+    private static long number(File file) {
+        String name = file.getName();
+        return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()), 16);
+    }
+}
@@ -1,8 +1,14 @@
 package de.kai_morich.simple_bluetooth_le_terminal;
 
+import java.util.Arrays;
+
 interface SerialListener {
     void onSerialConnect      ();
     void onSerialConnectError (Exception e);
     void onSerialRead         (byte[] data);
     void onSerialIoError      (Exception e);
+    // reads merged by SerialSession into data[0..length-1], data is only valid during this call
+    default void onSerialReadBatch(byte[] data, int length) { onSerialRead(Arrays.copyOf(data, length)); }
+    // complete frames if SerialSession has a FrameDecoder, data is only valid during this call
+    default void onSerialFrame(byte[] data, int offset, int length) {}
 }
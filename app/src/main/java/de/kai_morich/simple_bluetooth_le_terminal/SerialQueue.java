@@ -0,0 +1,184 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * byte capped queue for serial events while UI is not attached
+ *   - consecutive reads are merged into chunks, so replay needs only few callbacks
+ *   - if more than maxBytes are queued, policy decides to drop oldest or newest data or to spill data to a file
+ *   - if the spill file reaches maxSpillBytes, Spill continues like DropOldest for data still in memory
+ *
+ * not thread safe, callers synchronize
+ */
+class SerialQueue {
+
+    enum Type {Connect, ConnectError, Read, IoError}
+    enum Policy {DropOldest, DropNewest, Spill}
+
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    private static class Item {
+        final Type type;
+        final Exception e;
+        byte[] data;   // null if spilled
+        int length;
+        long spillOffset;
+
+        Item(Type type, Exception e) { this.type=type; this.e=e; }
+    }
+
+    private final ArrayDeque<Item> items = new ArrayDeque<>();
+    private int maxBytes;
+    private Policy policy;
+    private File spillFile;
+    private long maxSpillBytes;
+    private RandomAccessFile spill;
+    private long spillLength;
+    private byte[] spillBuffer;
+    private int bytes; // read data held in memory
+    private long droppedBytes, spilledBytes;
+
+    SerialQueue(int maxBytes, Policy policy) {
+        setPolicy(maxBytes, policy);
+    }
+
+    void setPolicy(int maxBytes, Policy policy) {
+        if(maxBytes < CHUNK_SIZE)
+            throw new IllegalArgumentException("queue smaller than chunk size");
+        this.maxBytes = maxBytes;
+        this.policy = policy;
+    }
+
+    /**
+     * without spill file, policy Spill behaves like DropOldest
+     */
+    void setSpillFile(File spillFile, long maxSpillBytes) {
+        this.spillFile = spillFile;
+        this.maxSpillBytes = maxSpillBytes;
+    }
+
+    long getDroppedBytes() { return droppedBytes; }
+    long getSpilledBytes() { return spilledBytes; }
+    boolean isEmpty() { return items.isEmpty(); }
+
+    void add(Type type, Exception e) {
+        items.add(new Item(type, e));
+    }
+
+    void addRead(byte[] data, int offset, int length) {
+        if(bytes + length > maxBytes && !makeRoom(length)) {
+            droppedBytes += length;
+            return;
+        }
+        Item last = items.peekLast();
+        while (length > 0) {
+            if(last == null || last.type != Type.Read || last.data == null || last.length == last.data.length) {
+                last = new Item(Type.Read, null);
+                last.data = new byte[CHUNK_SIZE];
+                items.add(last);
+            }
+            int len = Math.min(length, last.data.length - last.length);
+            System.arraycopy(data, offset, last.data, last.length, len);
+            last.length += len;
+            bytes += len;
+            offset += len;
+            length -= len;
+        }
+    }
+
+    /**
+     * deliver queued items to listener and clear queue
+     */
+    void replay(SerialListener listener) {
+        for(Item item : items) {
+            switch(item.type) {
+                case Connect:       listener.onSerialConnect      (); break;
+                case ConnectError:  listener.onSerialConnectError (item.e); break;
+                case IoError:       listener.onSerialIoError      (item.e); break;
+                case Read:
+                    if(item.data != null) {
+                        listener.onSerialReadBatch(item.data, item.length);
+                    } else if(readSpilled(item)) {
+                        listener.onSerialReadBatch(spillBuffer, item.length);
+                    }
+                    break;
+            }
+        }
+        clear();
+    }
+
+    void clear() {
+        items.clear();
+        bytes = 0;
+        closeSpill();
+    }
+
+    private boolean makeRoom(int length) {
+        if(policy == Policy.DropNewest || length > maxBytes)
+            return false;
+        boolean spilling = policy == Policy.Spill && spillFile != null;
+        Iterator<Item> it = items.iterator();
+        while (bytes + length > maxBytes && it.hasNext()) {
+            Item item = it.next();
+            if(item.type != Type.Read || item.data == null)
+                continue;
+            bytes -= item.length;
+            if(spilling && writeSpilled(item)) {
+                spilledBytes += item.length;
+                item.data = null;
+            } else {
+                droppedBytes += item.length;
+                it.remove();
+            }
+        }
+        return bytes + length <= maxBytes;
+    }
+
+    private boolean writeSpilled(Item item) {
+        if(spillLength + item.length > maxSpillBytes)
+            return false;
+        try {
+            if(spill == null)
+                spill = new RandomAccessFile(spillFile, "rw");
+            item.spillOffset = spillLength;
+            spill.seek(item.spillOffset);
+            spill.write(item.data, 0, item.length);
+            spillLength += item.length;
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private boolean readSpilled(Item item) {
+        try {
+            if(spill == null)
+                throw new IOException("spill file closed");
+            if(spillBuffer == null)
+                spillBuffer = new byte[CHUNK_SIZE];
+            spill.seek(item.spillOffset);
+            spill.readFully(spillBuffer, 0, item.length);
+            return true;
+        } catch (IOException e) {
+            droppedBytes += item.length;
+            return false;
+        }
+    }
+
+    private void closeSpill() {
+        if(spill == null)
+            return;
+        try {
+            spill.close();
+        } catch (IOException ignored) {
+        }
+        spill = null;
+        spillLength = 0;
+        //noinspection ResultOfMethodCallIgnored
+        spillFile.delete();
+    }
+}
@@ -12,41 +12,39 @@ import android.os.Build;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
+import android.util.Log;
 
 import androidx.annotation.Nullable;
 import androidx.core.app.NotificationCompat;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 
 /**
- * create notification and queue serial data while activity is not in the foreground
- * use listener chain: SerialSocket -> SerialService -> UI fragment
+ * create notification and hold connections while activity is not in the foreground
+ * one SerialSession per device address, see SerialSession for queueing
+ * use listener chain: SerialSocket -> SerialSession -> UI fragment
  */
-public class SerialService extends Service implements SerialListener {
+public class SerialService extends Service {
 
     class SerialBinder extends Binder {
         SerialService getService() { return SerialService.this; }
     }
 
-    private enum QueueType {Connect, ConnectError, Read, IoError}
-
-    private class QueueItem {
-        QueueType type;
-        byte[] data;
-        Exception e;
-
-        QueueItem(QueueType type, byte[] data, Exception e) { this.type=type; this.data=data; this.e=e; }
-    }
+    private static final int JOURNAL_SEGMENT_SIZE = 4 * 1024 * 1024;
+    private static final int JOURNAL_MAX_SEGMENTS = 16;
+    private static final String TAG = "SerialService";
 
     private final Handler mainLooper;
     private final IBinder binder;
-    private final Queue<QueueItem> queue1, queue2;
+    private final LinkedHashMap<String, SerialSession> sessions = new LinkedHashMap<>(); // used in main thread
+    private final ArrayDeque<SerialSession> connectQueue = new ArrayDeque<>();
 
-    private SerialSocket socket;
-    private SerialListener listener;
-    private boolean connected;
+    private SerialSession connecting; // only one connect phase at a time, android BLE stack serializes them anyway
+    private volatile SerialJournal journal;
 
     /**
      * Lifecylce
@@ -54,14 +52,21 @@ public class SerialService extends Service implements SerialListener {
     public SerialService() {
         mainLooper = new Handler(Looper.getMainLooper());
         binder = new SerialBinder();
-        queue1 = new LinkedList<>();
-        queue2 = new LinkedList<>();
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        CustomProfile.register(this);
     }
 
     @Override
     public void onDestroy() {
-        cancelNotification();
-        disconnect();
+        stopForeground(true);
+        for(SerialSession session : getSessions())
+            session.disconnect();
+        sessions.clear();
+        stopJournal();
         super.onDestroy();
     }
 
@@ -74,66 +79,159 @@ public class SerialService extends Service implements SerialListener {
     /**
      * Api
      */
-    public void connect(SerialSocket socket) throws IOException {
-        socket.connect(this);
-        this.socket = socket;
-        connected = true;
-    }
-
-    public void disconnect() {
-        connected = false; // ignore data,errors while disconnecting
-        cancelNotification();
-        if(socket != null) {
-            socket.disconnect();
-            socket = null;
+
+    /**
+     * session for device address, created if not existing. Call from main thread
+     */
+    public SerialSession getSession(String address) {
+        if(Looper.getMainLooper().getThread() != Thread.currentThread())
+            throw new IllegalArgumentException("not in main thread");
+        SerialSession session = sessions.get(address);
+        if(session == null) {
+            File spillFile = new File(getCacheDir(), "serial_queue_"+address.replace(":", "")+".bin");
+            session = new SerialSession(this, address, spillFile);
+            sessions.put(address, session);
         }
+        return session;
     }
 
-    public void write(byte[] data) throws IOException {
-        if(!connected)
-            throw new IOException("not connected");
-        socket.write(data);
+    public ArrayList<SerialSession> getSessions() {
+        return new ArrayList<>(sessions.values());
     }
 
-    public void attach(SerialListener listener) {
-        if(Looper.getMainLooper().getThread() != Thread.currentThread())
-            throw new IllegalArgumentException("not in main thread");
-        cancelNotification();
-        // use synchronized() to prevent new items in queue2
-        // new items will not be added to queue1 because mainLooper.post and attach() run in main thread
-        synchronized (this) {
-            this.listener = listener;
+    /**
+     * remove disconnected session and free queued data, called when its terminal is closed
+     */
+    public void removeSession(String address) {
+        SerialSession session = sessions.get(address);
+        if(session != null && !session.isConnected()) {
+            sessions.remove(address);
+            session.clearQueues();
         }
-        for(QueueItem item : queue1) {
-            switch(item.type) {
-                case Connect:       listener.onSerialConnect      (); break;
-                case ConnectError:  listener.onSerialConnectError (item.e); break;
-                case Read:          listener.onSerialRead         (item.data); break;
-                case IoError:       listener.onSerialIoError      (item.e); break;
-            }
+    }
+
+    public boolean hasConnectedSessions() {
+        for(SerialSession session : sessions.values())
+            if(session.isConnected())
+                return true;
+        return false;
+    }
+
+    /**
+     * received and sent bytes of all sessions
+     */
+    public long getReadBytes() {
+        long bytes = 0;
+        for(SerialSession session : sessions.values())
+            bytes += session.getReadBytes();
+        return bytes;
+    }
+
+    public long getWriteBytes() {
+        long bytes = 0;
+        for(SerialSession session : sessions.values())
+            bytes += session.getWriteBytes();
+        return bytes;
+    }
+
+    /**
+     * persist all sent and received data, independent of attached UI
+     */
+    public void startJournal() throws IOException {
+        if(journal == null)
+            journal = new SerialJournal(getJournalDir(), JOURNAL_SEGMENT_SIZE, JOURNAL_MAX_SEGMENTS);
+    }
+
+    public void stopJournal() {
+        SerialJournal journal = this.journal;
+        this.journal = null;
+        if(journal != null)
+            journal.close();
+    }
+
+    public boolean isJournalStarted() {
+        return journal != null;
+    }
+
+    public File getJournalDir() {
+        return new File(getFilesDir(), "journal");
+    }
+
+    void journal(byte direction, byte[] data) {
+        SerialJournal journal = this.journal;
+        if(journal == null)
+            return;
+        try {
+            journal.append(direction, data, 0, data.length);
+        } catch (IOException e) {
+            Log.w(TAG, "journal failed", e);
+            stopJournal();
         }
-        for(QueueItem item : queue2) {
-            switch(item.type) {
-                case Connect:       listener.onSerialConnect      (); break;
-                case ConnectError:  listener.onSerialConnectError (item.e); break;
-                case Read:          listener.onSerialRead         (item.data); break;
-                case IoError:       listener.onSerialIoError      (item.e); break;
+    }
+
+    /**
+     * connect phases (gatt connect, discovery, mtu, descriptor) of multiple sessions run one after the other,
+     * so a slow or failing device does not time out the others. All called in main thread
+     */
+    void startConnect(SerialSession session) throws IOException {
+        if(connecting != null && connecting != session) {
+            if(!connectQueue.contains(session))
+                connectQueue.add(session);
+            return;
+        }
+        connecting = session;
+        try {
+            session.startConnect();
+        } catch (IOException e) {
+            connecting = null;
+            startNextConnect();
+            throw e;
+        }
+    }
+
+    void connectFinished(SerialSession session) { // in any thread
+        mainLooper.post(() -> {
+            connectQueue.remove(session);
+            if(connecting == session) {
+                connecting = null;
+                startNextConnect();
+            }
+        });
+    }
+
+    private void startNextConnect() {
+        while(connecting == null && !connectQueue.isEmpty()) {
+            SerialSession session = connectQueue.poll();
+            connecting = session;
+            try {
+                session.startConnect();
+            } catch (IOException e) {
+                connecting = null;
+                session.onSerialConnectError(e);
             }
         }
-        queue1.clear();
-        queue2.clear();
     }
 
-    public void detach() {
-        if(connected)
-            createNotification();
-        // items already in event queue (posted before detach() to mainLooper) will end up in queue1
-        // items occurring later, will be moved directly to queue2
-        // detach() and mainLooper.post run in the main thread, so all items are caught
-        listener = null;
+    /**
+     * foreground service while connected sessions have no attached UI
+     */
+    void updateNotification() { // in main thread
+        int count = 0;
+        SerialSession detached = null;
+        for(SerialSession session : sessions.values()) {
+            if(session.isConnected()) {
+                count++;
+                if(!session.isAttached())
+                    detached = session;
+            }
+        }
+        if(detached == null)
+            stopForeground(true);
+        else
+            createNotification(count == 1 ? "Connected to "+detached.getName() : "Connected to "+count+" devices");
     }
 
-    private void createNotification() {
+    private void createNotification(String text) {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
             NotificationChannel nc = new NotificationChannel(Constants.NOTIFICATION_CHANNEL, "Background service", NotificationManager.IMPORTANCE_LOW);
             nc.setShowBadge(false);
@@ -152,7 +250,7 @@ public class SerialService extends Service implements SerialListener {
                 .setSmallIcon(R.drawable.ic_notification)
                 .setColor(getResources().getColor(R.color.colorPrimary))
                 .setContentTitle(getResources().getString(R.string.app_name))
-                .setContentText(socket != null ? "Connected to "+socket.getName() : "Background Service")
+                .setContentText(text)
                 .setContentIntent(restartPendingIntent)
                 .setOngoing(true)
                 .addAction(new NotificationCompat.Action(R.drawable.ic_clear_white_24dp, "Disconnect", disconnectPendingIntent));
@@ -162,91 +260,4 @@ public class SerialService extends Service implements SerialListener {
         startForeground(Constants.NOTIFY_MANAGER_START_FOREGROUND_SERVICE, notification);
     }
 
-    private void cancelNotification() {
-        stopForeground(true);
-    }
-
-    /**
-     * SerialListener
-     */
-    public void onSerialConnect() {
-        if(connected) {
-            synchronized (this) {
-                if (listener != null) {
-                    mainLooper.post(() -> {
-                        if (listener != null) {
-                            listener.onSerialConnect();
-                        } else {
-                            queue1.add(new QueueItem(QueueType.Connect, null, null));
-                        }
-                    });
-                } else {
-                    queue2.add(new QueueItem(QueueType.Connect, null, null));
-                }
-            }
-        }
-    }
-
-    public void onSerialConnectError(Exception e) {
-        if(connected) {
-            synchronized (this) {
-                if (listener != null) {
-                    mainLooper.post(() -> {
-                        if (listener != null) {
-                            listener.onSerialConnectError(e);
-                        } else {
-                            queue1.add(new QueueItem(QueueType.ConnectError, null, e));
-                            cancelNotification();
-                            disconnect();
-                        }
-                    });
-                } else {
-                    queue2.add(new QueueItem(QueueType.ConnectError, null, e));
-                    cancelNotification();
-                    disconnect();
-                }
-            }
-        }
-    }
-
-    public void onSerialRead(byte[] data) {
-        if(connected) {
-            synchronized (this) {
-                if (listener != null) {
-                    mainLooper.post(() -> {
-                        if (listener != null) {
-                            listener.onSerialRead(data);
-                        } else {
-                            queue1.add(new QueueItem(QueueType.Read, data, null));
-                        }
-                    });
-                } else {
-                    queue2.add(new QueueItem(QueueType.Read, data, null));
-                }
-            }
-        }
-    }
-
-    public void onSerialIoError(Exception e) {
-        if(connected) {
-            synchronized (this) {
-                if (listener != null) {
-                    mainLooper.post(() -> {
-                        if (listener != null) {
-                            listener.onSerialIoError(e);
-                        } else {
-                            queue1.add(new QueueItem(QueueType.IoError, null, e));
-                            cancelNotification();
-                            disconnect();
-                        }
-                    });
-                } else {
-                    queue2.add(new QueueItem(QueueType.IoError, null, e));
-                    cancelNotification();
-                    disconnect();
-                }
-            }
-        }
-    }
-
 }
@@ -0,0 +1,562 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.Choreographer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * connection to one device, created by SerialService per device address
+ *   - own socket, write settings, background queues and listener
+ *   - queue serial data while listener is detached
+ * use listener chain: SerialSocket -> SerialSession -> UI fragment
+ */
+class SerialSession implements SerialListener {
+
+    private enum BatchState {Idle, FrameScheduled, Posted}
+
+    private static final int READ_BATCH_SIZE = 4096;
+    private static final int READ_BATCH_THRESHOLD = 16 * 1024; // deliver before next frame
+    private static final int QUEUE1_SIZE = 256 * 1024; // only holds items posted before detach()
+    private static final int QUEUE2_SIZE = 4 * 1024 * 1024;
+    private static final long SPILL_SIZE = 64 * 1024 * 1024;
+    private static final String TAG = "SerialSession";
+
+    private final SerialService service;
+    private final String address;
+    private final Handler mainLooper;
+    private final SerialQueue queue1, queue2;
+    private final Choreographer choreographer;
+    private final Choreographer.FrameCallback readBatchFrameCallback;
+    private final Runnable readBatchRunnable;
+    private final SerialListener replayListener;
+    private final ReconnectController reconnector;
+
+    private SerialSocket socket;
+    private SerialListener listener;
+    private volatile boolean connected;
+    private String name;
+    private byte[] readBatch, readBatchDelivery; // filled in binder thread, delivered in main thread
+    private int readBatchLength;
+    private BatchState readBatchState = BatchState.Idle;
+    private int writeBudget = 64 * 1024;
+    private boolean writeBlocking = false; // TerminalFragment writes from main thread
+    private int writeLingerMillis;
+    private boolean linkTuning = true;
+    private FrameDecoder frameDecoder; // used in main thread
+    private volatile PingProbe pingProbe;
+    private volatile long readBytes, readCount, writeBytes;
+
+    private BluetoothDevice device;
+    private byte[] reconnectUnsent; // resent after reconnect
+    private int reconnectUnsentLength;
+
+    SerialSession(SerialService service, String address, File spillFile) { // in main thread
+        this.service = service;
+        this.address = address;
+        this.name = address;
+        mainLooper = new Handler(Looper.getMainLooper());
+        queue1 = new SerialQueue(QUEUE1_SIZE, SerialQueue.Policy.DropOldest);
+        queue2 = new SerialQueue(QUEUE2_SIZE, SerialQueue.Policy.DropOldest);
+        queue2.setSpillFile(spillFile, SPILL_SIZE);
+        choreographer = Choreographer.getInstance();
+        readBatchFrameCallback = frameTimeNanos -> deliverReadBatch();
+        readBatchRunnable = this::deliverReadBatch;
+        readBatch = new byte[READ_BATCH_SIZE];
+        readBatchDelivery = new byte[READ_BATCH_SIZE];
+        reconnector = new ReconnectController(new ReconnectController.Host() {
+            @Override public void connect() throws Exception { SerialSession.this.connect(new SerialSocket(service.getApplicationContext(), device)); }
+            @Override public void close() { closeReconnect(); }
+            @Override public void schedule(Runnable runnable, int delayMillis) {
+                Log.d(TAG, "reconnect attempt "+(reconnector.getAttempt()+1)+" in "+delayMillis+" msec");
+                mainLooper.postDelayed(runnable, delayMillis);
+            }
+            @Override public void cancel(Runnable runnable) { mainLooper.removeCallbacks(runnable); }
+            @Override public void onReconnectFailed(ConnectionLostException e) { reconnectFailed(e); }
+        }, new Random());
+        replayListener = new SerialListener() {
+            @Override public void onSerialConnect      ()            { listener.onSerialConnect(); }
+            @Override public void onSerialConnectError (Exception e) { listener.onSerialConnectError(e); }
+            @Override public void onSerialRead         (byte[] data) { deliverRead(data, data.length); }
+            @Override public void onSerialIoError      (Exception e) { listener.onSerialIoError(e); }
+            @Override public void onSerialReadBatch(byte[] data, int length) { deliverRead(data, length); }
+        };
+    }
+
+    /**
+     * Api
+     */
+    String getAddress() { return address; }
+    String getName() { return name; }
+    boolean isConnected() { return connected; }
+    boolean isAttached() { return listener != null; }
+
+    /**
+     * connect phase is started when connect phases of other sessions are finished
+     */
+    public void connect(SerialSocket socket) throws IOException {
+        socket.setWriteBudget(writeBudget, writeBlocking);
+        socket.setWriteCoalescing(writeLingerMillis);
+        socket.setLinkTuning(linkTuning);
+        if(frameDecoder != null)
+            frameDecoder.reset(); // drop partial frame from previous connection
+        if(!reconnector.isReconnecting())
+            device = socket.getDevice();
+        name = socket.getName();
+        this.socket = socket;
+        connected = true;
+        try {
+            service.startConnect(this);
+        } catch (IOException e) {
+            this.socket = null;
+            if(!reconnector.isReconnecting()) // else stays connected until ReconnectController gives up
+                connected = false;
+            throw e;
+        }
+        service.updateNotification();
+    }
+
+    void startConnect() throws IOException { // called by SerialService
+        SerialSocket socket = this.socket;
+        if(socket == null)
+            throw new IOException("not connected");
+        socket.connect(this);
+    }
+
+    public void disconnect() {
+        connected = false; // ignore data,errors while disconnecting
+        reconnector.stop();
+        reconnectUnsentLength = 0;
+        if(socket != null) {
+            socket.disconnect();
+            socket = null;
+        }
+        service.connectFinished(this);
+        service.updateNotification();
+    }
+
+    public void write(byte[] data) throws IOException {
+        if(!connected)
+            throw new IOException("not connected");
+        if(reconnector.isReconnecting()) {
+            addUnsent(data, 0, data.length);
+        } else {
+            socket.write(data);
+        }
+        writeBytes += data.length;
+        service.journal(SerialJournal.TX, data);
+    }
+
+    /**
+     * returned future completes, when all data is confirmed by the device.
+     * Blocking write budget should not be used from main thread, see FileSender for a background producer.
+     */
+    public WriteFuture writeAsync(byte[] data) throws IOException {
+        SerialSocket socket = this.socket; // might be called from background thread
+        if(!connected || reconnector.isReconnecting() || socket == null)
+            throw new IOException("not connected");
+        WriteFuture future = socket.writeAsync(data);
+        writeBytes += data.length;
+        service.journal(SerialJournal.TX, data);
+        return future;
+    }
+
+    /**
+     * limit unconfirmed write data, if exceeded writes block or fail with IOException
+     */
+    public void setWriteBudget(int bytes, boolean blocking) {
+        writeBudget = bytes;
+        writeBlocking = blocking;
+        if(socket != null)
+            socket.setWriteBudget(bytes, blocking);
+    }
+
+    /**
+     * merge small writes into full packets, delaying partial packets up to lingerMillis. 0 = off
+     */
+    public void setWriteCoalescing(int lingerMillis) {
+        writeLingerMillis = lingerMillis;
+        if(socket != null)
+            socket.setWriteCoalescing(lingerMillis);
+    }
+
+    /**
+     * connection priority and PHY follow the data rate, see SerialSocket.setLinkTuning
+     */
+    public void setLinkTuning(boolean enabled) {
+        linkTuning = enabled;
+        if(socket != null)
+            socket.setLinkTuning(enabled);
+    }
+
+    public void flush() throws IOException {
+        SerialSocket socket = this.socket; // might be called from background thread
+        if(!connected || reconnector.isReconnecting() || socket == null)
+            throw new IOException("not connected");
+        socket.flush();
+    }
+
+    long getReadBytes() { return readBytes; }
+    long getWriteBytes() { return writeBytes; }
+
+    /**
+     * counters for statistics view, without socket counters while reconnecting
+     */
+    void getLinkStats(LinkStats stats) {
+        stats.clear();
+        stats.time = SystemClock.elapsedRealtime();
+        stats.readBytes = readBytes;
+        stats.readNotifications = readCount;
+        stats.writeBytes = writeBytes;
+        stats.reconnects = reconnector.getReconnects();
+        synchronized (this) {
+            stats.queueDropped = queue1.getDroppedBytes() + queue2.getDroppedBytes();
+            stats.queueSpilled = queue2.getSpilledBytes();
+        }
+        SerialSocket socket = this.socket;
+        if(socket != null)
+            socket.getLinkStats(stats);
+    }
+
+    /**
+     * reconnect after transient connection loss, with exponential backoff and jitter. 0 = off.
+     * Listener gets ConnectionLostException with isReconnecting() instead of a final error,
+     * then onSerialConnect or a final onSerialIoError when all attempts failed.
+     * Writes while reconnecting are kept up to the write budget and sent after reconnect.
+     */
+    public void setAutoReconnect(int maxAttempts) {
+        reconnector.setMaxAttempts(maxAttempts);
+    }
+
+    public int getAutoReconnect() { return reconnector.getMaxAttempts(); }
+
+    public boolean isReconnecting() { return reconnector.isReconnecting(); }
+
+    /**
+     * @return successful reconnects, attempts, reconnects given up after maxAttempts
+     */
+    public int getReconnects() { return reconnector.getReconnects(); }
+    public int getReconnectAttempts() { return reconnector.getAttempts(); }
+    public int getReconnectFailures() { return reconnector.getFailures(); }
+
+    /**
+     * time from connection loss to reconnected, in milliseconds
+     */
+    public long getReconnectLastMillis() { return reconnector.getLastMillis(); }
+    public long getReconnectMaxMillis() { return reconnector.getMaxMillis(); }
+
+    /**
+     * duration of connect phases, see SerialSocket.getConnectTiming
+     */
+    public String getConnectTiming() {
+        SerialSocket socket = this.socket;
+        return socket != null ? socket.getConnectTiming() : "";
+    }
+
+    /**
+     * queue wait and execution time per GATT operation type, see GattQueue.getStats
+     */
+    public String getGattStats() {
+        SerialSocket socket = this.socket;
+        return socket != null ? socket.getGattStats() : "";
+    }
+
+    /**
+     * Telit credit window and write credit starvation, see SerialSocket.getCreditStats
+     */
+    public String getCreditStats() {
+        SerialSocket socket = this.socket;
+        return socket != null ? socket.getCreditStats() : "";
+    }
+
+    /**
+     * probe sees received data in binder thread, before batching and queueing. null = off
+     */
+    void setPingProbe(PingProbe pingProbe) {
+        this.pingProbe = pingProbe;
+    }
+
+    /**
+     * limit data queued while detached, policy Spill moves older data to a cache file up to SPILL_SIZE
+     */
+    public void setBackgroundQueue(int maxBytes, SerialQueue.Policy policy) {
+        synchronized (this) {
+            queue2.setPolicy(maxBytes, policy);
+        }
+    }
+
+    public synchronized long getQueueDroppedBytes() {
+        return queue1.getDroppedBytes() + queue2.getDroppedBytes();
+    }
+
+    public synchronized long getQueueSpilledBytes() {
+        return queue2.getSpilledBytes();
+    }
+
+    /**
+     * drop data queued while detached and delete spill file
+     */
+    synchronized void clearQueues() {
+        queue1.clear();
+        queue2.clear();
+    }
+
+    /**
+     * split received data into frames delivered with SerialListener.onSerialFrame, null = off.
+     * Call from main thread. Data queued while detached is framed on attach()
+     */
+    public void setFrameDecoder(FrameDecoder frameDecoder) {
+        if(Looper.getMainLooper().getThread() != Thread.currentThread())
+            throw new IllegalArgumentException("not in main thread");
+        this.frameDecoder = frameDecoder;
+    }
+
+    public void attach(SerialListener listener) {
+        if(Looper.getMainLooper().getThread() != Thread.currentThread())
+            throw new IllegalArgumentException("not in main thread");
+        // use synchronized() to prevent new items in queue2
+        // new items will not be added to queue1 because mainLooper.post and attach() run in main thread
+        synchronized (this) {
+            this.listener = listener;
+        }
+        service.updateNotification();
+        // reads are replayed as few large chunks
+        queue1.replay(replayListener);
+        queue2.replay(replayListener);
+    }
+
+    public void detach() {
+        // items already in event queue (posted before detach() to mainLooper) will end up in queue1
+        // items occurring later, will be moved directly to queue2
+        // detach() and mainLooper.post run in the main thread, so all items are caught
+        listener = null;
+        service.updateNotification();
+    }
+
+    /**
+     * reconnect, all called in main thread
+     */
+    private void startReconnect() {
+        if(!reconnector.isReconnecting())
+            return;
+        if(socket != null) {
+            byte[] unsent = socket.getUnsent();
+            socket.disconnect();
+            socket = null;
+            if(unsent != null) {
+                try {
+                    addUnsent(unsent, 0, unsent.length);
+                } catch (IOException e) {
+                    Log.w(TAG, "unsent data dropped", e);
+                }
+            }
+        }
+        reconnector.start(SystemClock.elapsedRealtime());
+    }
+
+    private void closeReconnect() { // socket of failed attempt
+        if(socket != null) {
+            socket.disconnect();
+            socket = null;
+        }
+        service.connectFinished(this);
+    }
+
+    /**
+     * final error is delivered directly, not through onSerialIoError which ignores errors when not connected
+     */
+    private void reconnectFailed(ConnectionLostException e) {
+        Log.d(TAG, "reconnect failed after "+reconnector.getAttempt()+" attempts");
+        reconnectUnsentLength = 0;
+        deliverIoError(e, false);
+    }
+
+    private void reconnected() {
+        if(!reconnector.connected(SystemClock.elapsedRealtime()))
+            return;
+        Log.d(TAG, "reconnected after "+reconnector.getAttempt()+" attempts, "+reconnector.getLastMillis()+" msec");
+        if(reconnectUnsentLength > 0) {
+            try {
+                socket.write(Arrays.copyOf(reconnectUnsent, reconnectUnsentLength));
+            } catch (IOException e) {
+                Log.w(TAG, "resend failed", e);
+            }
+            reconnectUnsentLength = 0;
+        }
+    }
+
+    private void addUnsent(byte[] data, int offset, int length) throws IOException {
+        if(reconnectUnsentLength + length > writeBudget)
+            throw new WriteBudgetException();
+        if(reconnectUnsent == null || reconnectUnsentLength + length > reconnectUnsent.length)
+            reconnectUnsent = Arrays.copyOf(reconnectUnsent != null ? reconnectUnsent : new byte[0],
+                    Math.min(writeBudget, Math.max(reconnectUnsentLength + length, reconnectUnsentLength * 2)));
+        System.arraycopy(data, offset, reconnectUnsent, reconnectUnsentLength, length);
+        reconnectUnsentLength += length;
+    }
+
+    /**
+     * reads are collected and delivered once per display frame, or earlier if READ_BATCH_THRESHOLD is reached.
+     * Other events first flush the batch, so order is kept.
+     */
+    private void addReadBatch(byte[] data) { // with lock held
+        if(readBatchLength + data.length > readBatch.length)
+            readBatch = Arrays.copyOf(readBatch, Math.max(readBatch.length * 2, readBatchLength + data.length));
+        System.arraycopy(data, 0, readBatch, readBatchLength, data.length);
+        readBatchLength += data.length;
+        if(readBatchState == BatchState.Idle) {
+            readBatchState = BatchState.FrameScheduled;
+            choreographer.postFrameCallback(readBatchFrameCallback);
+        }
+        if(readBatchLength >= READ_BATCH_THRESHOLD)
+            flushReadBatch();
+    }
+
+    private void flushReadBatch() { // with lock held
+        if(readBatchState == BatchState.FrameScheduled) {
+            choreographer.removeFrameCallback(readBatchFrameCallback);
+            readBatchState = BatchState.Posted;
+            mainLooper.post(readBatchRunnable);
+        }
+    }
+
+    private void deliverReadBatch() {
+        byte[] data;
+        int length;
+        synchronized (this) {
+            data = readBatch;
+            length = readBatchLength;
+            readBatch = readBatchDelivery;
+            readBatchDelivery = data;
+            readBatchLength = 0;
+            readBatchState = BatchState.Idle;
+        }
+        if(length == 0)
+            return;
+        if (listener != null) {
+            deliverRead(data, length);
+        } else {
+            queue1.addRead(data, 0, length);
+        }
+    }
+
+    private void deliverRead(byte[] data, int length) { // in main thread with listener attached
+        listener.onSerialReadBatch(data, length);
+        FrameDecoder frameDecoder = this.frameDecoder;
+        if(frameDecoder != null && listener != null) // listener might have detached
+            frameDecoder.decode(data, 0, length, listener);
+    }
+
+    /**
+     * SerialListener
+     */
+    public void onSerialConnect() {
+        if(connected) {
+            service.connectFinished(this);
+            if(reconnector.isReconnecting())
+                mainLooper.post(this::reconnected); // before listener is informed
+            synchronized (this) {
+                if (listener != null) {
+                    flushReadBatch();
+                    mainLooper.post(() -> {
+                        if (listener != null) {
+                            listener.onSerialConnect();
+                        } else {
+                            queue1.add(SerialQueue.Type.Connect, null);
+                        }
+                    });
+                } else {
+                    queue2.add(SerialQueue.Type.Connect, null);
+                }
+            }
+        }
+    }
+
+    public void onSerialConnectError(Exception e) {
+        if(connected) {
+            if(reconnector.isReconnecting()) {
+                mainLooper.post(() -> reconnector.failed(e));
+                return;
+            }
+            synchronized (this) {
+                if (listener != null) {
+                    flushReadBatch();
+                    mainLooper.post(() -> {
+                        if (listener != null) {
+                            listener.onSerialConnectError(e);
+                        } else {
+                            queue1.add(SerialQueue.Type.ConnectError, e);
+                            disconnect();
+                        }
+                    });
+                } else {
+                    queue2.add(SerialQueue.Type.ConnectError, e);
+                    mainLooper.post(this::disconnect);
+                }
+            }
+        }
+    }
+
+    public void onSerialRead(byte[] data) {
+        if(connected) {
+            readBytes += data.length;
+            readCount++;
+            service.journal(SerialJournal.RX, data); // in binder thread, before any queueing
+            PingProbe pingProbe = this.pingProbe;
+            if(pingProbe != null)
+                pingProbe.onRead(data);
+            synchronized (this) {
+                if (listener != null) {
+                    addReadBatch(data);
+                } else {
+                    queue2.addRead(data, 0, data.length);
+                }
+            }
+        }
+    }
+
+    public void onSerialIoError(Exception e) {
+        if(connected) {
+            if(reconnector.isReconnecting()) { // error of new connection, before reconnected()
+                mainLooper.post(() -> reconnector.failed(e));
+                return;
+            }
+            boolean reconnect = reconnector.begin(e);
+            if(reconnect) {
+                mainLooper.post(this::startReconnect);
+                deliverIoError(new ConnectionLostException((ConnectionLostException) e, true), true);
+            } else {
+                deliverIoError(e, false);
+            }
+        }
+    }
+
+    private void deliverIoError(Exception error, boolean reconnect) {
+        synchronized (this) {
+            if (listener != null) {
+                flushReadBatch();
+                mainLooper.post(() -> {
+                    if (listener != null) {
+                        listener.onSerialIoError(error);
+                    } else {
+                        queue1.add(SerialQueue.Type.IoError, error);
+                        if(!reconnect)
+                            disconnect();
+                    }
+                });
+            } else {
+                queue2.add(SerialQueue.Type.IoError, error);
+                if(!reconnect)
+                    mainLooper.post(this::disconnect);
+            }
+        }
+    }
+
+}
@@ -13,12 +13,17 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.io.IOException;
 import java.security.InvalidParameterException;
-import java.util.ArrayList;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
 import java.util.UUID;
 
 /**
@@ -31,14 +36,22 @@ class SerialSocket extends BluetoothGattCallback {
     /**
      * delegate device specific behaviour to inner class
      */
-    private class DeviceDelegate {
+    class DeviceDelegate {
         boolean connectCharacteristics(BluetoothGattService s) { return true; }
+        // for delegates registered outside of this class
+        final void setCharacteristics(BluetoothGattCharacteristic read, BluetoothGattCharacteristic write) {
+            readCharacteristic = read;
+            writeCharacteristic = write;
+        }
         // following methods only overwritten for Telit devices
-        void onDescriptorWrite(BluetoothGatt g, BluetoothGattDescriptor d, int status) { /*nop*/ }
-        void onCharacteristicChanged(BluetoothGatt g, BluetoothGattCharacteristic c) {/*nop*/ }
-        void onCharacteristicWrite(BluetoothGatt g, BluetoothGattCharacteristic c, int status) { /*nop*/ }
+        void onDescriptorWrite(GattClient g, BluetoothGattDescriptor d, int status) { /*nop*/ }
+        void onCharacteristicChanged(GattClient g, BluetoothGattCharacteristic c) {/*nop*/ }
+        void onCharacteristicWrite(GattClient g, BluetoothGattCharacteristic c, int status) { /*nop*/ }
         boolean canWrite() { return true; }
         void disconnect() {/*nop*/ }
+        String getCreditStats() { return ""; }
+        int getReadCredits() { return -1; }
+        int getWriteCredits() { return -1; }
     }
 
     private static final UUID BLUETOOTH_LE_CCCD           = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
@@ -60,31 +73,118 @@ class SerialSocket extends BluetoothGattCallback {
 
     private static final int MAX_MTU = 512; // BLE standard does not limit, some BLE 4.2 devices support 251, various source say that Android has max 512
     private static final int DEFAULT_MTU = 23;
+    private static final int WRITE_BUFFER_SIZE = 256 * 1024;
+    private static final long MTU_CACHE_MAX_AGE = 7 * 24 * 3600 * 1000L; // then request MTU again, e.g. after firmware update
+    private static final int LINK_TUNING_INTERVAL = 1000;
+    private static final int LINK_IDLE_TIME = 5000; // then low power connection interval
+    private static final int BULK_WRITE_BACKLOG = 4096; // unconfirmed write bytes
+    private static final int BULK_READ_RATE = 4096; // bytes per second
     private static final String TAG = "SerialSocket";
 
-    private final ArrayList<byte[]> writeBuffer;
+    interface DelegateFactory {
+        DeviceDelegate create(SerialSocket socket);
+    }
+
+    private enum ConnectPhase { Gatt, Discovery, Mtu, Descriptor, FirstRead }
+
+    private enum LinkPriority { Balanced, High, LowPower } // Balanced = Android default
+
+    private static final HashMap<UUID, DelegateFactory> delegateFactories = new HashMap<>(); // by service UUID
+
+    static {
+        registerBuiltinDelegates();
+    }
+
+    private static void registerBuiltinDelegates() {
+        registerDelegate(BLUETOOTH_LE_CC254X_SERVICE, socket -> socket.new Cc245XDelegate());
+        registerDelegate(BLUETOOTH_LE_RN4870_SERVICE, socket -> socket.new Rn4870Delegate());
+        registerDelegate(BLUETOOTH_LE_NRF_SERVICE,    socket -> socket.new NrfDelegate());
+        registerDelegate(BLUETOOTH_LE_TIO_SERVICE,    socket -> socket.new TelitDelegate(BLUETOOTH_LE_TIO_CHAR_RX, BLUETOOTH_LE_TIO_CHAR_TX,
+                BLUETOOTH_LE_TIO_CHAR_RX_CREDITS, BLUETOOTH_LE_TIO_CHAR_TX_CREDITS));
+    }
+
+    private final ByteRingBuffer writeBuffer;
+    private final ArrayDeque<WriteFuture> writeFutures;
+    private final Handler lingerHandler;
+    private final Runnable lingerRunnable;
+    private final Handler linkHandler;
+    private final Runnable linkTuningRunnable;
     private final IntentFilter pairingIntentFilter;
     private final BroadcastReceiver pairingBroadcastReceiver;
     private final BroadcastReceiver disconnectBroadcastReceiver;
+    private final GattCache gattCache;
+    private final GattQueue gattQueue;
+    private final GattClient.Factory gattFactory;
+    private final long[] connectPhaseEnd = new long[ConnectPhase.values().length];
 
     private Context context;
     private SerialListener listener;
     private DeviceDelegate delegate;
     private BluetoothDevice device;
-    private BluetoothGatt gatt;
+    private GattClient gatt;
     private BluetoothGattCharacteristic readCharacteristic, writeCharacteristic;
+    private GattCache.Entry cached; // from previous connection to this device
+    private UUID serialService;
+    private long connectStart;
 
     private boolean writePending;
+    private int writePendingLength;
+    private long writeQueuedBytes, writeDoneBytes; // in-flight = queued - done
+    private boolean writeBlocking;
+    private boolean writeSplit; // write larger than writeBuffer in progress
+    private int writeLingerMillis; // 0 = no coalescing
+    private long writeLingerDeadline;
+    private boolean writeFlush;
+    private long writePackets, writePacketsUncoalesced, writePacketBytes;
+    private byte[] unsent;
     private boolean canceled;
     private boolean connected;
+    private int mtu = DEFAULT_MTU;
+    private long mtuTime;
     private int payloadSize = DEFAULT_MTU-3;
 
+    private boolean linkTuning = true; // used in main thread
+    private LinkPriority linkPriority = LinkPriority.Balanced;
+    private boolean phyRequested;
+    private volatile long readBytes; // written in binder thread
+    private long linkReadBytes, linkIdleSince;
+    private volatile int txPhy = 1, rxPhy = 1; // BluetoothDevice.PHY_LE_1M
+    private volatile int connectionInterval, connectionLatency, supervisionTimeout; // 0 = not reported
+
     SerialSocket(Context context, BluetoothDevice device) {
+        this(context, device, GattClient.ANDROID);
+    }
+
+    /**
+     * with simulated GATT peer in tests
+     */
+    SerialSocket(Context context, BluetoothDevice device, GattClient.Factory gattFactory) {
         if(context instanceof Activity)
             throw new InvalidParameterException("expected non UI context");
         this.context = context;
         this.device = device;
-        writeBuffer = new ArrayList<>();
+        this.gattFactory = gattFactory;
+        writeBuffer = new ByteRingBuffer(WRITE_BUFFER_SIZE, MAX_MTU-3);
+        writeFutures = new ArrayDeque<>();
+        gattCache = GattCache.getInstance(context);
+        Handler timeoutHandler = new Handler(Looper.getMainLooper());
+        gattQueue = new GattQueue(new GattQueue.Listener() {
+            @Override public void onGattIdle() { writeNext(); }
+            @Override public void onGattError(IOException e) {
+                if(connected)
+                    onSerialIoError(e);
+                else
+                    onSerialConnectError(e);
+            }
+        }, new GattQueue.Scheduler() {
+            @Override public long uptimeMillis() { return SystemClock.uptimeMillis(); }
+            @Override public void postAtTime(Runnable runnable, long uptimeMillis) { timeoutHandler.postAtTime(runnable, uptimeMillis); }
+            @Override public void removeCallbacks(Runnable runnable) { timeoutHandler.removeCallbacks(runnable); }
+        });
+        lingerHandler = new Handler(Looper.getMainLooper());
+        lingerRunnable = this::writeNext;
+        linkHandler = new Handler(Looper.getMainLooper());
+        linkTuningRunnable = this::tuneLink;
         pairingIntentFilter = new IntentFilter();
         pairingIntentFilter.addAction(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
         pairingIntentFilter.addAction(BluetoothDevice.ACTION_PAIRING_REQUEST);
@@ -104,19 +204,192 @@ class SerialSocket extends BluetoothGattCallback {
         };
     }
 
+    /**
+     * add or replace delegate for devices with this service
+     */
+    static void registerDelegate(UUID service, DelegateFactory factory) {
+        synchronized (delegateFactories) {
+            delegateFactories.put(service, factory);
+        }
+    }
+
+    /**
+     * user defined serial profile, read and write can be the same characteristic.
+     * With credit characteristics Telit TIO flow control is used, else they are null
+     */
+    static void registerProfile(UUID service, UUID read, UUID write, UUID readCredits, UUID writeCredits) {
+        if(readCredits != null && writeCredits != null)
+            registerDelegate(service, socket -> socket.new TelitDelegate(read, write, readCredits, writeCredits));
+        else
+            registerDelegate(service, socket -> socket.new CustomDelegate(read, write));
+    }
+
+    /**
+     * remove user defined profile, a built-in delegate for this service is restored
+     */
+    static void unregisterProfile(UUID service) {
+        synchronized (delegateFactories) {
+            delegateFactories.remove(service);
+        }
+        registerBuiltinDelegates();
+    }
+
+    private static DelegateFactory getDelegateFactory(UUID service) {
+        synchronized (delegateFactories) {
+            return delegateFactories.get(service);
+        }
+    }
+
+    /**
+     * duration of connect phases in milliseconds for comparison of full and cached connects
+     */
+    String getConnectTiming() {
+        StringBuilder sb = new StringBuilder();
+        long start = connectStart;
+        for (ConnectPhase phase : ConnectPhase.values()) {
+            long end = connectPhaseEnd[phase.ordinal()];
+            if(end == 0)
+                continue;
+            if(phase == ConnectPhase.FirstRead) { // might arrive before Descriptor phase is finished
+                sb.append("FirstRead=").append(end - connectStart).append(" after start");
+            } else {
+                sb.append(phase).append('=').append(end - start).append(' ');
+                start = end;
+            }
+        }
+        return sb.toString().trim();
+    }
+
+    private void connectPhaseDone(ConnectPhase phase) {
+        if(connectPhaseEnd[phase.ordinal()] == 0)
+            connectPhaseEnd[phase.ordinal()] = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * queue wait and execution time per GATT operation type, see GattQueue.getStats
+     */
+    String getGattStats() {
+        return gattQueue.getStats();
+    }
+
+    /**
+     * flow control state of Telit devices, empty for other devices
+     */
+    String getCreditStats() {
+        DeviceDelegate delegate = this.delegate;
+        return delegate != null ? delegate.getCreditStats() : "";
+    }
+
+    /**
+     * fill link counters of this connection, called once per second by UI
+     */
+    void getLinkStats(LinkStats stats) {
+        synchronized (writeBuffer) {
+            stats.writePackets = writePackets;
+            stats.writePacketBytes = writePacketBytes;
+            stats.writePacketsSaved = writePacketsUncoalesced - writePackets; // merged by coalescing
+            stats.writeQueued = (int) (writeQueuedBytes - writeDoneBytes);
+        }
+        stats.mtu = mtu;
+        stats.payloadSize = payloadSize;
+        stats.link = getLinkState();
+        DeviceDelegate delegate = this.delegate;
+        stats.readCredits = delegate != null ? delegate.getReadCredits() : -1;
+        stats.writeCredits = delegate != null ? delegate.getWriteCredits() : -1;
+    }
+
+    /**
+     * raise connection priority and request 2M PHY during bulk transfers, low power connection interval when idle.
+     * Call from main thread
+     */
+    void setLinkTuning(boolean enabled) {
+        linkTuning = enabled;
+        if(!enabled && connected)
+            setLinkPriority(LinkPriority.Balanced);
+    }
+
+    /**
+     * priority, PHY and connection parameters reported by onPhyUpdate and onConnectionUpdated
+     */
+    String getLinkState() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("priority ").append(linkPriority).append(" phy ").append(phyName(txPhy)).append('/').append(phyName(rxPhy));
+        if(connectionInterval != 0)
+            sb.append(String.format(Locale.US, " interval %.2fms latency %d timeout %dms",
+                    connectionInterval * 1.25, connectionLatency, supervisionTimeout * 10));
+        return sb.toString();
+    }
+
+    private static String phyName(int phy) {
+        switch (phy) {
+            case 1: return "1M";
+            case 2: return "2M";
+            case 3: return "Coded";
+            default: return String.valueOf(phy);
+        }
+    }
+
+    BluetoothDevice getDevice() {
+        return device;
+    }
+
+    /**
+     * data not yet passed to the BLE stack when the connection was lost, null if none
+     */
+    byte[] getUnsent() {
+        synchronized (writeBuffer) {
+            return unsent;
+        }
+    }
+
     String getName() {
         return device.getName() != null ? device.getName() : device.getAddress();
     }
 
+    /**
+     * limit bytes queued but not yet confirmed by onCharacteristicWrite.
+     * If exceeded, write() blocks until enough data is sent or fails immediately.
+     */
+    void setWriteBudget(int bytes, boolean blocking) {
+        synchronized (writeBuffer) {
+            writeBuffer.setHighWaterMark(bytes);
+            writeBlocking = blocking;
+        }
+    }
+
+    /**
+     * coalesce small writes into full packets, partial packets are delayed up to lingerMillis.
+     * 0 disables coalescing, flush() sends partial packets immediately
+     */
+    void setWriteCoalescing(int lingerMillis) {
+        synchronized (writeBuffer) {
+            writeLingerMillis = lingerMillis;
+        }
+        writeNext();
+    }
+
+    void flush() {
+        synchronized (writeBuffer) {
+            writeFlush = true;
+        }
+        writeNext();
+    }
+
+    boolean writeBufferAboveHighWaterMark() {
+        synchronized (writeBuffer) {
+            return writeBuffer.aboveHighWaterMark();
+        }
+    }
+
     void disconnect() {
         Log.d(TAG, "disconnect");
         listener = null; // ignore remaining data and errors
         device = null;
         canceled = true;
-        synchronized (writeBuffer) {
-            writePending = false;
-            writeBuffer.clear();
-        }
+        gattQueue.clear();
+        failWrites(new IOException("disconnected"));
+        lingerHandler.removeCallbacks(lingerRunnable);
+        linkHandler.removeCallbacksAndMessages(null); // tuning tick and priority restore
         readCharacteristic = null;
         writeCharacteristic = null;
         if(delegate != null)
@@ -130,6 +403,7 @@ class SerialSocket extends BluetoothGattCallback {
             } catch (Exception ignored) {}
             gatt = null;
             connected = false;
+            Log.d(TAG, "gatt operations "+gattQueue.getStats());
         }
         try {
             context.unregisterReceiver(pairingBroadcastReceiver);
@@ -148,17 +422,16 @@ class SerialSocket extends BluetoothGattCallback {
         if(connected || gatt != null)
             throw new IOException("already connected");
         canceled = false;
+        gattQueue.clear();
         this.listener = listener;
+        connectStart = SystemClock.elapsedRealtime();
+        Arrays.fill(connectPhaseEnd, 0);
+        cached = gattCache.get(device.getAddress());
         context.registerReceiver(disconnectBroadcastReceiver, new IntentFilter(Constants.INTENT_ACTION_DISCONNECT));
         Log.d(TAG, "connect "+device);
         context.registerReceiver(pairingBroadcastReceiver, pairingIntentFilter);
-        if (Build.VERSION.SDK_INT < 23) {
-            Log.d(TAG, "connectGatt");
-            gatt = device.connectGatt(context, false, this);
-        } else {
-            Log.d(TAG, "connectGatt,LE");
-            gatt = device.connectGatt(context, false, this, BluetoothDevice.TRANSPORT_LE);
-        }
+        Log.d(TAG, "connectGatt");
+        gatt = gattFactory.connect(context, device, this);
         if (gatt == null)
             throw new IOException("connectGatt failed");
         // continues asynchronously in onPairingBroadcastReceive() and onConnectionStateChange()
@@ -188,18 +461,25 @@ class SerialSocket extends BluetoothGattCallback {
         }
     }
 
+    /*
+     * GATT callbacks use the gatt field instead of the BluetoothGatt parameter, which is null with simulated peer in tests
+     */
     @Override
-    public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+    public void onConnectionStateChange(BluetoothGatt bluetoothGatt, int status, int newState) {
         // status directly taken from gat_api.h, e.g. 133=0x85=GATT_ERROR ~= timeout
+        GattClient gatt = this.gatt;
         if (newState == BluetoothProfile.STATE_CONNECTED) {
+            if (gatt == null)
+                return; // disconnected meanwhile
             Log.d(TAG,"connect status "+status+", discoverServices");
-            if (!gatt.discoverServices())
-                onSerialConnectError(new IOException("discoverServices failed"));
+            connectPhaseDone(ConnectPhase.Gatt);
+            gattQueue.add(new GattQueue.Operation(GattQueue.Type.Discover, "discoverServices failed", gatt::discoverServices));
         } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+            gattQueue.clear();
             if (connected)
-                onSerialIoError     (new IOException("gatt status " + status));
+                onSerialIoError     (new ConnectionLostException("gatt status " + status, status));
             else
-                onSerialConnectError(new IOException("gatt status " + status));
+                onSerialConnectError(new ConnectionLostException("gatt status " + status, status));
         } else {
             Log.d(TAG, "unknown connect state "+newState+" "+status);
         }
@@ -207,68 +487,95 @@ class SerialSocket extends BluetoothGattCallback {
     }
 
     @Override
-    public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+    public void onServicesDiscovered(BluetoothGatt bluetoothGatt, int status) {
         Log.d(TAG, "servicesDiscovered, status " + status);
+        gattQueue.complete(GattQueue.Type.Discover);
         if (canceled)
             return;
+        connectPhaseDone(ConnectPhase.Discovery);
         connectCharacteristics1(gatt);
     }
 
-    private void connectCharacteristics1(BluetoothGatt gatt) {
+    private void connectCharacteristics1(GattClient gatt) {
         boolean sync = true;
         writePending = false;
-        for (BluetoothGattService gattService : gatt.getServices()) {
-            if (gattService.getUuid().equals(BLUETOOTH_LE_CC254X_SERVICE))
-                delegate = new Cc245XDelegate();
-            if (gattService.getUuid().equals(BLUETOOTH_LE_RN4870_SERVICE))
-                delegate = new Rn4870Delegate();
-            if (gattService.getUuid().equals(BLUETOOTH_LE_NRF_SERVICE))
-                delegate = new NrfDelegate();
-            if (gattService.getUuid().equals(BLUETOOTH_LE_TIO_SERVICE))
-                delegate = new TelitDelegate();
-
-            if(delegate != null) {
-                sync = delegate.connectCharacteristics(gattService);
-                break;
-            }
-        }
+        BluetoothGattService gattService = findSerialService(gatt);
+        if(gattService != null)
+            sync = delegate.connectCharacteristics(gattService);
         if(canceled)
             return;
         if(delegate==null || readCharacteristic==null || writeCharacteristic==null) {
-            for (BluetoothGattService gattService : gatt.getServices()) {
-                Log.d(TAG, "service "+gattService.getUuid());
-                for(BluetoothGattCharacteristic characteristic : gattService.getCharacteristics())
+            gattCache.remove(gatt.getDevice().getAddress()); // full scan on next connect
+            for (BluetoothGattService service : gatt.getServices()) {
+                Log.d(TAG, "service "+service.getUuid());
+                for(BluetoothGattCharacteristic characteristic : service.getCharacteristics())
                     Log.d(TAG, "characteristic "+characteristic.getUuid());
             }
             onSerialConnectError(new IOException("no serial profile found"));
             return;
         }
+        serialService = gattService.getUuid();
         if(sync)
             connectCharacteristics2(gatt);
     }
 
-    private void connectCharacteristics2(BluetoothGatt gatt) {
+    /**
+     * service of previous connection to this device is tried first, else first service with registered delegate
+     */
+    private BluetoothGattService findSerialService(GattClient gatt) {
+        if(cached != null) {
+            BluetoothGattService gattService = gatt.getService(cached.service);
+            DelegateFactory factory = getDelegateFactory(cached.service);
+            if(gattService != null && factory != null) {
+                Log.d(TAG, "cached profile "+cached.service);
+                delegate = factory.create(this);
+                return gattService;
+            }
+        }
+        for (BluetoothGattService gattService : gatt.getServices()) {
+            DelegateFactory factory = getDelegateFactory(gattService.getUuid());
+            if(factory != null) {
+                delegate = factory.create(this);
+                return gattService;
+            }
+        }
+        return null;
+    }
+
+    private void connectCharacteristics2(GattClient gatt) {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            if(cached != null && cached.service.equals(serialService) && cached.mtu <= DEFAULT_MTU && cached.mtuTime != 0
+                    && System.currentTimeMillis() - cached.mtuTime < MTU_CACHE_MAX_AGE) { // only skip after successful exchange
+                Log.d(TAG, "cached MTU "+cached.mtu+", skip request MTU");
+                mtuTime = cached.mtuTime;
+                connectPhaseDone(ConnectPhase.Mtu);
+                connectCharacteristics3(gatt);
+                return;
+            }
             Log.d(TAG, "request max MTU");
-            if (!gatt.requestMtu(MAX_MTU))
-                onSerialConnectError(new IOException("request MTU failed"));
+            gattQueue.add(new GattQueue.Operation(GattQueue.Type.Mtu, "request MTU failed", () -> gatt.requestMtu(MAX_MTU)));
             // continues asynchronously in onMtuChanged
         } else {
+            connectPhaseDone(ConnectPhase.Mtu);
             connectCharacteristics3(gatt);
         }
     }
 
     @Override
-    public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+    public void onMtuChanged(BluetoothGatt bluetoothGatt, int mtu, int status) {
         Log.d(TAG,"mtu size "+mtu+", status="+status);
+        gattQueue.complete(GattQueue.Type.Mtu);
         if(status ==  BluetoothGatt.GATT_SUCCESS) {
+            this.mtu = mtu;
             payloadSize = mtu - 3;
+            mtuTime = System.currentTimeMillis(); // failed exchange stays 0, so MTU is requested again on next connect
             Log.d(TAG, "payload size "+payloadSize);
         }
+        connectPhaseDone(ConnectPhase.Mtu);
         connectCharacteristics3(gatt);
     }
 
-    private void connectCharacteristics3(BluetoothGatt gatt) {
+    private void connectCharacteristics3(GattClient gatt) {
         int writeProperties = writeCharacteristic.getProperties();
         if((writeProperties & (BluetoothGattCharacteristic.PROPERTY_WRITE +     // Microbit,HM10-clone have WRITE
                 BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE)) ==0) { // HM10,TI uart,Telit have only WRITE_NO_RESPONSE
@@ -296,14 +603,14 @@ class SerialSocket extends BluetoothGattCallback {
             return;
         }
         Log.d(TAG,"writing read characteristic descriptor");
-        if(!gatt.writeDescriptor(readDescriptor)) {
-            onSerialConnectError(new IOException("read characteristic CCCD descriptor not writable"));
-        }
+        gattQueue.add(new GattQueue.Operation(GattQueue.Type.Descriptor, "read characteristic CCCD descriptor not writable",
+                () -> gatt.writeDescriptor(readDescriptor)));
         // continues asynchronously in onDescriptorWrite()
     }
 
     @Override
-    public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+    public void onDescriptorWrite(BluetoothGatt bluetoothGatt, BluetoothGattDescriptor descriptor, int status) {
+        gattQueue.complete(GattQueue.Type.Descriptor);
         delegate.onDescriptorWrite(gatt, descriptor, status);
         if(canceled)
             return;
@@ -314,25 +621,126 @@ class SerialSocket extends BluetoothGattCallback {
             } else {
                 // onCharacteristicChanged with incoming data can happen after writeDescriptor(ENABLE_INDICATION/NOTIFICATION)
                 // before confirmed by this method, so receive data can be shown before device is shown as 'Connected'.
+                connectPhaseDone(ConnectPhase.Descriptor);
+                gattCache.put(gatt.getDevice().getAddress(), new GattCache.Entry(serialService, mtu, mtuTime));
                 onSerialConnect();
                 connected = true;
-                Log.d(TAG, "connected");
+                linkHandler.postDelayed(linkTuningRunnable, LINK_TUNING_INTERVAL);
+                Log.d(TAG, "connected, "+getConnectTiming());
+            }
+        }
+    }
+
+    @Override
+    public void onPhyUpdate(BluetoothGatt bluetoothGatt, int txPhy, int rxPhy, int status) {
+        Log.d(TAG, "phy update tx="+phyName(txPhy)+" rx="+phyName(rxPhy)+", status="+status);
+        if(status == BluetoothGatt.GATT_SUCCESS) {
+            this.txPhy = txPhy;
+            this.rxPhy = rxPhy;
+        }
+    }
+
+    // hidden in BluetoothGattCallback before API 33, but called since API 26, so no @Override
+    public void onConnectionUpdated(BluetoothGatt bluetoothGatt, int interval, int latency, int timeout, int status) {
+        Log.d(TAG, "connection updated interval="+interval+" latency="+latency+" timeout="+timeout+", status="+status);
+        if(status == BluetoothGatt.GATT_SUCCESS) {
+            connectionInterval = interval;
+            connectionLatency = latency;
+            supervisionTimeout = timeout;
+        }
+    }
+
+    /**
+     * link tuning, sampled every LINK_TUNING_INTERVAL in main thread while connected
+     */
+    private void tuneLink() {
+        if(canceled || gatt == null)
+            return;
+        long backlog;
+        synchronized (writeBuffer) {
+            backlog = writeQueuedBytes - writeDoneBytes;
+        }
+        long read = readBytes - linkReadBytes;
+        linkReadBytes += read;
+        if(linkTuning) {
+            if (backlog >= BULK_WRITE_BACKLOG || read * 1000 / LINK_TUNING_INTERVAL >= BULK_READ_RATE) {
+                linkIdleSince = 0;
+                setLinkPriority(LinkPriority.High);
+                requestPhy2M();
+            } else if (backlog > 0 || read > 0) {
+                linkIdleSince = 0;
+                setLinkPriority(LinkPriority.Balanced);
+            } else if (linkIdleSince == 0) {
+                linkIdleSince = SystemClock.uptimeMillis();
+            } else if (SystemClock.uptimeMillis() - linkIdleSince >= LINK_IDLE_TIME) {
+                setLinkPriority(LinkPriority.LowPower);
             }
         }
+        linkHandler.postDelayed(linkTuningRunnable, LINK_TUNING_INTERVAL);
+    }
+
+    /**
+     * queued like other GATT operations, so it does not interfere with a pending write or discovery.
+     * A rejected request is not fatal, previous priority is restored and retried with the next tuning tick
+     */
+    private void setLinkPriority(LinkPriority priority) {
+        GattClient gatt = this.gatt;
+        if(priority == linkPriority || gatt == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP)
+            return;
+        int value;
+        switch (priority) {
+            case High:     value = BluetoothGatt.CONNECTION_PRIORITY_HIGH; break;
+            case LowPower: value = BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER; break;
+            default:       value = BluetoothGatt.CONNECTION_PRIORITY_BALANCED; break;
+        }
+        LinkPriority previous = linkPriority;
+        linkPriority = priority;
+        gattQueue.add(new GattQueue.Operation(GattQueue.Type.Priority, "request connection priority failed", () -> {
+            if(gatt.requestConnectionPriority(value)) {
+                Log.d(TAG, "connection priority "+previous+" -> "+priority);
+            } else {
+                Log.d(TAG, "connection priority "+priority+" rejected");
+                linkHandler.post(() -> {
+                    if(linkPriority == priority)
+                        linkPriority = previous;
+                });
+            }
+            return true;
+        }));
+    }
+
+    /**
+     * 2M PHY only pays off with long packets. Data length extension is negotiated by the BLE stack
+     * and not visible to apps, a large MTU indicates a BLE 4.2+ peer that usually supports it.
+     */
+    private void requestPhy2M() {
+        if(phyRequested || Build.VERSION.SDK_INT < Build.VERSION_CODES.O || mtu <= DEFAULT_MTU)
+            return;
+        phyRequested = true;
+        GattClient gatt = this.gatt;
+        if(!gatt.isLe2MPhySupported())
+            return;
+        Log.d(TAG, "request 2M phy");
+        gattQueue.add(new GattQueue.Operation(GattQueue.Type.Phy, "set preferred phy failed", () -> {
+            gatt.setPreferredPhy(BluetoothDevice.PHY_LE_2M_MASK, BluetoothDevice.PHY_LE_2M_MASK, BluetoothDevice.PHY_OPTION_NO_PREFERRED);
+            return true; // done when started, many phones never call onPhyUpdate
+        }));
     }
 
     /*
      * read
      */
     @Override
-    public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+    public void onCharacteristicChanged(BluetoothGatt bluetoothGatt, BluetoothGattCharacteristic characteristic) {
         if(canceled)
             return;
         delegate.onCharacteristicChanged(gatt, characteristic);
         if(canceled)
             return;
         if(characteristic == readCharacteristic) { // NOPMD - test object identity
+            connectPhaseDone(ConnectPhase.FirstRead);
             byte[] data = readCharacteristic.getValue();
+            readBytes += data.length;
             onSerialRead(data);
             Log.d(TAG,"read, len="+data.length);
         }
@@ -342,48 +750,75 @@ class SerialSocket extends BluetoothGattCallback {
      * write
      */
     void write(byte[] data) throws IOException {
+        write(data, false);
+    }
+
+    /**
+     * like write(), but returned future completes when the last chunk is confirmed
+     */
+    WriteFuture writeAsync(byte[] data) throws IOException {
+        return write(data, true);
+    }
+
+    /**
+     * writes larger than the write buffer are queued in pieces as space frees, so the call blocks
+     * until all but the last buffer full is sent, also with non-blocking write budget
+     */
+    private WriteFuture write(byte[] data, boolean withFuture) throws IOException {
         if(canceled || !connected || writeCharacteristic == null)
             throw new IOException("not connected");
-        byte[] data0;
+        WriteFuture future = null;
         synchronized (writeBuffer) {
-            if(data.length <= payloadSize) {
-                data0 = data;
-            } else {
-                data0 = Arrays.copyOfRange(data, 0, payloadSize);
+            // always accept a write into an idle link, even if larger than budget
+            while (writeSplit || writeQueuedBytes > writeDoneBytes && writeQueuedBytes - writeDoneBytes + data.length > writeBuffer.getHighWaterMark()) {
+                if(!writeBlocking)
+                    throw new WriteBudgetException();
+                waitWriteBuffer();
             }
-            if(!writePending && writeBuffer.isEmpty() && delegate.canWrite()) {
-                writePending = true;
-            } else {
-                writeBuffer.add(data0);
-                Log.d(TAG,"write queued, len="+data0.length);
-                data0 = null;
-            }
-            if(data.length > payloadSize) {
-                for(int i=1; i<(data.length+payloadSize-1)/payloadSize; i++) {
-                    int from = i*payloadSize;
-                    int to = Math.min(from+payloadSize, data.length);
-                    writeBuffer.add(Arrays.copyOfRange(data, from, to));
-                    Log.d(TAG,"write queued, len="+(to-from));
+            long startOffset = writeQueuedBytes;
+            int offset = 0;
+            while (true) {
+                int length = Math.min(data.length - offset, writeBuffer.available());
+                boolean wasEmpty = writeBuffer.size() == writePendingLength;
+                writeBuffer.put(data, offset, length);
+                offset += length;
+                writeQueuedBytes += length;
+                writePacketsUncoalesced += (length + payloadSize - 1) / payloadSize;
+                if(wasEmpty && writeLingerMillis > 0) {
+                    writeLingerDeadline = SystemClock.uptimeMillis() + writeLingerMillis;
+                    lingerHandler.postAtTime(lingerRunnable, writeLingerDeadline);
+                }
+                if(offset == data.length)
+                    break;
+                writeSplit = true; // keep other writes out while waiting
+                try {
+                    writeNext();
+                    while (writeBuffer.available() == 0)
+                        waitWriteBuffer();
+                } finally {
+                    writeSplit = false;
                 }
             }
-        }
-        if(data0 != null) {
-            writeCharacteristic.setValue(data0);
-            if (!gatt.writeCharacteristic(writeCharacteristic)) {
-                onSerialIoError(new IOException("write failed"));
-            } else {
-                Log.d(TAG,"write started, len="+data0.length);
+            if(withFuture) {
+                future = new WriteFuture(startOffset, writeQueuedBytes);
+                writeFutures.add(future);
             }
+            Log.d(TAG,"write queued, len="+data.length);
         }
+        writeNext();
+        return future;
         // continues asynchronously in onCharacteristicWrite()
     }
 
     @Override
-    public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-        if(canceled || !connected || writeCharacteristic == null)
+    public void onCharacteristicWrite(BluetoothGatt bluetoothGatt, BluetoothGattCharacteristic characteristic, int status) {
+        if(canceled || writeCharacteristic == null) // credits write completes while still connecting
             return;
         if(status != BluetoothGatt.GATT_SUCCESS) {
-            onSerialIoError(new IOException("write failed"));
+            if(connected)
+                onSerialIoError(new IOException("write failed"));
+            else
+                onSerialConnectError(new IOException("write failed"));
             return;
         }
         delegate.onCharacteristicWrite(gatt, characteristic, status);
@@ -391,29 +826,86 @@ class SerialSocket extends BluetoothGattCallback {
             return;
         if(characteristic == writeCharacteristic) { // NOPMD - test object identity
             Log.d(TAG,"write finished, status="+status);
+            writeDone();
+            gattQueue.dataDone();
             writeNext();
+        } else {
+            gattQueue.complete(GattQueue.Type.Credits);
         }
     }
 
+    /**
+     * start next write, if none is pending.
+     * BluetoothGatt accepts one write until onCharacteristicWrite, also for write-without-response.
+     * The pending chunk stays in writeBuffer until confirmed, so it can be resent after reconnect
+     */
     private void writeNext() {
-        final byte[] data;
+        boolean failed = false;
         synchronized (writeBuffer) {
-            if (!writeBuffer.isEmpty() && delegate.canWrite()) {
-                writePending = true;
-                data = writeBuffer.remove(0);
-            } else {
-                writePending = false;
-                data = null;
-            }
-        }
-        if(data != null) {
-            writeCharacteristic.setValue(data);
-            if (!gatt.writeCharacteristic(writeCharacteristic)) {
-                onSerialIoError(new IOException("write failed"));
+            if (writeBuffer.isEmpty())
+                writeFlush = false;
+            if (canceled || writePending || writeBuffer.isEmpty() || !delegate.canWrite())
+                return;
+            if (writeBuffer.size() < payloadSize && writeLingerMillis > 0 && !writeFlush
+                    && SystemClock.uptimeMillis() < writeLingerDeadline)
+                return; // wait for more data, continues in lingerRunnable
+            byte[] data = writeBuffer.peek(payloadSize);
+            // setValue keeps the reused array, but writeCharacteristic copies it before returning
+            GattQueue.Result result = gattQueue.startData(() -> {
+                writeCharacteristic.setValue(data);
+                return gatt.writeCharacteristic(writeCharacteristic);
+            });
+            if (result == GattQueue.Result.Blocked)
+                return; // control operation first, continues in onGattIdle
+            if (result == GattQueue.Result.Failed) {
+                failed = true;
             } else {
+                writePending = true;
+                writePendingLength = data.length;
+                writePackets++;
+                writePacketBytes += data.length;
                 Log.d(TAG,"write started, len="+data.length);
+                if (writeBuffer.size() == data.length)
+                    writeFlush = false;
             }
         }
+        if(failed)
+            onSerialIoError(new IOException("write failed"));
+    }
+
+    private void waitWriteBuffer() throws IOException { // with lock held
+        try {
+            writeBuffer.wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("write interrupted");
+        }
+        if(canceled)
+            throw new IOException("not connected");
+    }
+
+    private void writeDone() {
+        synchronized (writeBuffer) {
+            writePending = false;
+            writeBuffer.skip(writePendingLength);
+            writeDoneBytes += writePendingLength;
+            writePendingLength = 0;
+            while (!writeFutures.isEmpty() && writeFutures.peek().endOffset <= writeDoneBytes)
+                writeFutures.poll().complete();
+            writeBuffer.notifyAll();
+        }
+    }
+
+    private void failWrites(IOException e) {
+        synchronized (writeBuffer) {
+            writePending = false;
+            writePendingLength = 0;
+            writeBuffer.clear();
+            writeDoneBytes = writeQueuedBytes;
+            while (!writeFutures.isEmpty())
+                writeFutures.poll().fail(e);
+            writeBuffer.notifyAll();
+        }
     }
 
     /**
@@ -436,12 +928,38 @@ class SerialSocket extends BluetoothGattCallback {
     }
 
     private void onSerialIoError(Exception e) {
-        writePending = false;
         canceled = true;
+        synchronized (writeBuffer) {
+            if (unsent == null && !writeBuffer.isEmpty())
+                unsent = takeUnsent();
+        }
+        failWrites(new IOException("write aborted", e));
         if (listener != null)
             listener.onSerialIoError(e);
     }
 
+    /**
+     * pending and queued data without data of writeAsync, as their futures fail and the caller decides about resend
+     */
+    private byte[] takeUnsent() { // with lock held
+        byte[] data = new byte[writeBuffer.size()];
+        for (int pos = 0; pos < data.length; ) {
+            byte[] chunk = writeBuffer.take(MAX_MTU-3);
+            System.arraycopy(chunk, 0, data, pos, chunk.length);
+            pos += chunk.length;
+        }
+        int length = 0, from = 0; // data[0] is at stream position writeDoneBytes
+        for (WriteFuture future : writeFutures) {
+            int start = (int) Math.max(future.startOffset - writeDoneBytes, 0);
+            System.arraycopy(data, from, data, length, start - from);
+            length += start - from;
+            from = (int) (future.endOffset - writeDoneBytes);
+        }
+        System.arraycopy(data, from, data, length, data.length - from);
+        length += data.length - from;
+        return length > 0 ? Arrays.copyOf(data, length) : null;
+    }
+
     /**
      * device delegates
      */
@@ -466,6 +984,23 @@ class SerialSocket extends BluetoothGattCallback {
         }
     }
 
+    private class CustomDelegate extends DeviceDelegate {
+        private final UUID readUuid, writeUuid;
+
+        CustomDelegate(UUID read, UUID write) {
+            this.readUuid = read;
+            this.writeUuid = write;
+        }
+
+        @Override
+        boolean connectCharacteristics(BluetoothGattService gattService) {
+            Log.d(TAG, "service "+gattService.getUuid()+" user defined");
+            readCharacteristic = gattService.getCharacteristic(readUuid);
+            writeCharacteristic = gattService.getCharacteristic(writeUuid);
+            return true;
+        }
+    }
+
     private class NrfDelegate extends DeviceDelegate {
         @Override
         boolean connectCharacteristics(BluetoothGattService gattService) {
@@ -495,18 +1030,29 @@ class SerialSocket extends BluetoothGattCallback {
     }
 
     private class TelitDelegate extends DeviceDelegate {
+        private final UUID readUuid, writeUuid, readCreditsUuid, writeCreditsUuid;
+        private final CreditController creditController = new CreditController();
         private BluetoothGattCharacteristic readCreditsCharacteristic, writeCreditsCharacteristic;
-        private int readCredits, writeCredits;
+        private int writeCredits;
+        private long writeStarvedSince; // 0 = not waiting for write credits
+        private long writeStarvedMillis, writeStarvations;
+
+        TelitDelegate(UUID read, UUID write, UUID readCredits, UUID writeCredits) {
+            this.readUuid = read;
+            this.writeUuid = write;
+            this.readCreditsUuid = readCredits;
+            this.writeCreditsUuid = writeCredits;
+        }
 
         @Override
         boolean connectCharacteristics(BluetoothGattService gattService) {
             Log.d(TAG, "service telit tio 2.0");
-            readCredits = 0;
+            creditController.reset();
             writeCredits = 0;
-            readCharacteristic = gattService.getCharacteristic(BLUETOOTH_LE_TIO_CHAR_RX);
-            writeCharacteristic = gattService.getCharacteristic(BLUETOOTH_LE_TIO_CHAR_TX);
-            readCreditsCharacteristic = gattService.getCharacteristic(BLUETOOTH_LE_TIO_CHAR_RX_CREDITS);
-            writeCreditsCharacteristic = gattService.getCharacteristic(BLUETOOTH_LE_TIO_CHAR_TX_CREDITS);
+            readCharacteristic = gattService.getCharacteristic(readUuid);
+            writeCharacteristic = gattService.getCharacteristic(writeUuid);
+            readCreditsCharacteristic = gattService.getCharacteristic(readCreditsUuid);
+            writeCreditsCharacteristic = gattService.getCharacteristic(writeCreditsUuid);
             if (readCharacteristic == null) {
                 onSerialConnectError(new IOException("read characteristic not found"));
                 return false;
@@ -534,17 +1080,14 @@ class SerialSocket extends BluetoothGattCallback {
             }
             readCreditsDescriptor.setValue(BluetoothGattDescriptor.ENABLE_INDICATION_VALUE);
             Log.d(TAG,"writing read credits characteristic descriptor");
-            if (!gatt.writeDescriptor(readCreditsDescriptor)) {
-                onSerialConnectError(new IOException("read credits characteristic CCCD descriptor not writable"));
-                return false;
-            }
-            Log.d(TAG, "writing read credits characteristic descriptor");
+            gattQueue.add(new GattQueue.Operation(GattQueue.Type.Descriptor, "read credits characteristic CCCD descriptor not writable",
+                    () -> gatt.writeDescriptor(readCreditsDescriptor)));
             return false;
             // continues asynchronously in connectCharacteristics2
         }
 
         @Override
-        void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+        void onDescriptorWrite(GattClient gatt, BluetoothGattDescriptor descriptor, int status) {
             if(descriptor.getCharacteristic() == readCreditsCharacteristic) {
                 Log.d(TAG, "writing read credits characteristic descriptor finished, status=" + status);
                 if (status != BluetoothGatt.GATT_SUCCESS) {
@@ -558,35 +1101,34 @@ class SerialSocket extends BluetoothGattCallback {
                 if (status == BluetoothGatt.GATT_SUCCESS) {
                     readCharacteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
                     writeCharacteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
-                    grantReadCredits();
-                    // grantReadCredits includes gatt.writeCharacteristic(writeCreditsCharacteristic)
-                    // but we do not have to wait for confirmation, as it is the last write of connect phase.
+                    grantReadCredits(creditController.initialGrant(SystemClock.uptimeMillis()));
+                    // grantReadCredits queues gatt.writeCharacteristic(writeCreditsCharacteristic)
+                    // after this descriptor write, data writes wait until it is confirmed.
                 }
             }
         }
 
         @Override
-        void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+        void onCharacteristicChanged(GattClient gatt, BluetoothGattCharacteristic characteristic) {
             if(characteristic == readCreditsCharacteristic) { // NOPMD - test object identity
-                int newCredits = (int) (readCreditsCharacteristic.getValue()[0]);
+                int newCredits = readCreditsCharacteristic.getValue()[0] & 0xff;
                 synchronized (writeBuffer) {
                     writeCredits += newCredits;
+                    if(writeStarvedSince != 0) {
+                        writeStarvedMillis += SystemClock.uptimeMillis() - writeStarvedSince;
+                        writeStarvedSince = 0;
+                    }
                 }
                 Log.d(TAG, "got write credits +"+newCredits+" ="+writeCredits);
-
-                if (!writePending && !writeBuffer.isEmpty()) {
-                    Log.d(TAG, "resume blocked write");
-                    writeNext();
-                }
+                writeNext(); // resume blocked write
             }
             if(characteristic == readCharacteristic) { // NOPMD - test object identity
-                grantReadCredits();
-                Log.d(TAG, "read, credits=" + readCredits);
+                grantReadCredits(creditController.onNotification(SystemClock.uptimeMillis()));
             }
         }
 
         @Override
-        void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+        void onCharacteristicWrite(GattClient gatt, BluetoothGattCharacteristic characteristic, int status) {
             if(characteristic == writeCharacteristic) { // NOPMD - test object identity
                 synchronized (writeBuffer) {
                     if (writeCredits > 0)
@@ -596,6 +1138,7 @@ class SerialSocket extends BluetoothGattCallback {
             }
             if(characteristic == writeCreditsCharacteristic) { // NOPMD - test object identity
                 Log.d(TAG,"write credits finished, status="+status);
+                creditController.onGrantDone(SystemClock.uptimeMillis());
             }
         }
 
@@ -604,6 +1147,10 @@ class SerialSocket extends BluetoothGattCallback {
             if(writeCredits > 0)
                 return true;
             Log.d(TAG, "no write credits");
+            if(writeStarvedSince == 0) { // with writeBuffer lock held from writeNext
+                writeStarvedSince = SystemClock.uptimeMillis();
+                writeStarvations++;
+            }
             return false;
         }
 
@@ -613,23 +1160,43 @@ class SerialSocket extends BluetoothGattCallback {
             writeCreditsCharacteristic = null;
         }
 
-        private void grantReadCredits() {
-            final int minReadCredits = 16;
-            final int maxReadCredits = 64;
-            if(readCredits > 0)
-                readCredits -= 1;
-            if(readCredits <= minReadCredits) {
-                int newCredits = maxReadCredits - readCredits;
-                readCredits += newCredits;
+        @Override
+        String getCreditStats() {
+            synchronized (writeBuffer) {
+                long starved = writeStarvedMillis;
+                if(writeStarvedSince != 0)
+                    starved += SystemClock.uptimeMillis() - writeStarvedSince;
+                return "read "+creditController.getStats()+", write credits="+writeCredits
+                        +" starvations="+writeStarvations+" starved="+starved+"ms";
+            }
+        }
+
+        @Override
+        int getReadCredits() {
+            return creditController.getOutstanding();
+        }
+
+        @Override
+        int getWriteCredits() {
+            synchronized (writeBuffer) {
+                return writeCredits;
+            }
+        }
+
+        /**
+         * window and batch size from CreditController, one credit write per batch
+         */
+        private void grantReadCredits(int newCredits) {
+            if(newCredits > 0) {
                 byte[] data = new byte[] {(byte)newCredits};
-                Log.d(TAG, "grant read credits +"+newCredits+" ="+readCredits);
-                writeCreditsCharacteristic.setValue(data);
-                if (!gatt.writeCharacteristic(writeCreditsCharacteristic)) {
-                    if(connected)
-                        onSerialIoError(new IOException("write read credits failed"));
-                    else
-                        onSerialConnectError(new IOException("write read credits failed"));
-                }
+                Log.d(TAG, "grant read credits +"+newCredits+", window="+creditController.getWindow());
+                GattClient gatt = SerialSocket.this.gatt;
+                BluetoothGattCharacteristic characteristic = writeCreditsCharacteristic;
+                // queued before data writes, else it can be rejected while a data write is outstanding
+                gattQueue.add(new GattQueue.Operation(GattQueue.Type.Credits, "write read credits failed", () -> {
+                    characteristic.setValue(data);
+                    return gatt.writeCharacteristic(characteristic);
+                }));
             }
         }
 
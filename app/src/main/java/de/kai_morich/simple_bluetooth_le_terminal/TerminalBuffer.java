@@ -0,0 +1,293 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * scrollback buffer for terminal output
+ *   - characters are stored in fixed size chunks, lines are indexed by their start position
+ *   - style runs store a TerminalStyle value for the following characters
+ *   - oldest lines are dropped if more than maxLines exist
+ *   - the cursor is a column in the last line, characters are written at the cursor position
+ *
+ * append cost is independent of buffer size, only the last line can be modified,
+ * so cursor movement and erase cost at most the length of the last line.
+ * not thread safe, used from main thread
+ */
+class TerminalBuffer {
+
+    interface RunVisitor {
+        /** from, to are offsets within the line */
+        void onRun(int from, int to, int style);
+    }
+
+    private static final int CHUNK_BITS = 14;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    static final int MAX_LINE_LENGTH = 1024; // longer lines are wrapped
+
+    private final ArrayList<char[]> chunks = new ArrayList<>();
+    private char[] spareChunk;
+    private long firstChunk;    // chunk number of chunks.get(0)
+    private long end;           // position after last character
+
+    private final long[] lineStart; // ring buffer
+    private int firstLine;
+    private int lineCount;
+    private long droppedLines;
+
+    private long[] runStart = new long[64];
+    private int[] runStyle = new int[64];
+    private int firstRun, runCount;
+    private int style;
+    private int cursor;
+
+    TerminalBuffer(int maxLines) {
+        if(maxLines < 1)
+            throw new IllegalArgumentException("invalid line count");
+        lineStart = new long[maxLines];
+        clear();
+    }
+
+    void clear() {
+        chunks.clear();
+        firstChunk = 0;
+        end = 0;
+        firstLine = 0;
+        lineCount = 1;
+        lineStart[0] = 0;
+        droppedLines = 0;
+        firstRun = 0;
+        runCount = 0;
+        addRun(0, style);
+        cursor = 0;
+    }
+
+    int getLineCount() { return lineCount; }
+
+    /**
+     * total number of lines dropped from top, used by views to track removed lines
+     */
+    long getDroppedLines() { return droppedLines; }
+
+    int getLineLength(int line) {
+        return (int) (lineEnd(line) - lineStart(line));
+    }
+
+    void getLine(int line, StringBuilder sb) {
+        for(long pos = lineStart(line), end = lineEnd(line); pos < end; pos++)
+            sb.append(charAt(pos));
+    }
+
+    void visitStyleRuns(int line, RunVisitor visitor) {
+        long start = lineStart(line), end = lineEnd(line);
+        if(start == end)
+            return;
+        int run = findRun(start);
+        while (run < runCount) {
+            long from = Math.max(start, runPosition(run));
+            long to = run + 1 < runCount ? Math.min(end, runPosition(run + 1)) : end;
+            if(from >= end)
+                break;
+            if(to > from)
+                visitor.onRun((int) (from - start), (int) (to - start), runStyle[firstRun + run]);
+            run++;
+        }
+    }
+
+    /**
+     * style for following appended characters
+     */
+    void setStyle(int style) {
+        this.style = style;
+        restoreStyle();
+    }
+
+    void append(char c) {
+        if(c == '\n') {
+            newLine();
+            return;
+        }
+        if(cursor >= MAX_LINE_LENGTH)
+            newLine();
+        long start = lineStart(lineCount - 1);
+        while (end - start < cursor)
+            put(' ');
+        if(start + cursor < end) {
+            chunks.get((int) (((start + cursor) >>> CHUNK_BITS) - firstChunk))[(int) ((start + cursor) & CHUNK_MASK)] = c;
+            setStyleAt(start + cursor);
+        } else {
+            put(c);
+        }
+        cursor++;
+    }
+
+    void append(CharSequence s) {
+        for(int i = 0; i < s.length(); i++)
+            append(s.charAt(i));
+    }
+
+    void append(char[] chars, int offset, int length) {
+        for(int i = offset; i < offset + length; i++)
+            append(chars[i]);
+    }
+
+    void newLine() {
+        if(lineCount == lineStart.length)
+            dropLine();
+        lineStart[(firstLine + lineCount) % lineStart.length] = end;
+        lineCount++;
+        cursor = 0;
+    }
+
+    int getCursor() { return cursor; }
+
+    void setCursor(int column) {
+        cursor = Math.max(0, Math.min(column, MAX_LINE_LENGTH - 1));
+    }
+
+    void carriageReturn() { cursor = 0; }
+    void cursorBack(int n) { setCursor(cursor - n); }
+    void cursorForward(int n) { setCursor(cursor + n); }
+    void cursorToEnd() { cursor = (int) (end - lineStart(lineCount - 1)); }
+
+    /**
+     * @param mode 0 = cursor to end of line, 1 = start of line to cursor, 2 = whole line
+     */
+    void eraseLine(int mode) {
+        long start = lineStart(lineCount - 1);
+        switch (mode) {
+            case 0:
+                truncate(start + cursor);
+                break;
+            case 1:
+                for(long pos = start, to = Math.min(start + cursor + 1, end); pos < to; pos++)
+                    chunks.get((int) ((pos >>> CHUNK_BITS) - firstChunk))[(int) (pos & CHUNK_MASK)] = ' ';
+                break;
+            case 2:
+                truncate(start);
+                break;
+        }
+    }
+
+    private void truncate(long position) {
+        if(position >= end)
+            return;
+        end = Math.max(lineStart(lineCount - 1), position);
+        while (runCount > 1 && runPosition(runCount - 1) >= end)
+            runCount--;
+        restoreStyle();
+    }
+
+    private long lineStart(int line) {
+        return lineStart[(firstLine + line) % lineStart.length];
+    }
+
+    private long lineEnd(int line) {
+        return line + 1 < lineCount ? lineStart(line + 1) : end;
+    }
+
+    private char charAt(long pos) {
+        return chunks.get((int) ((pos >>> CHUNK_BITS) - firstChunk))[(int) (pos & CHUNK_MASK)];
+    }
+
+    private void put(char c) {
+        int chunk = (int) ((end >>> CHUNK_BITS) - firstChunk);
+        if(chunk == chunks.size()) {
+            chunks.add(spareChunk != null ? spareChunk : new char[CHUNK_SIZE]);
+            spareChunk = null;
+        }
+        chunks.get(chunk)[(int) (end & CHUNK_MASK)] = c;
+        end++;
+    }
+
+    private void dropLine() {
+        firstLine = (firstLine + 1) % lineStart.length;
+        lineCount--;
+        droppedLines++;
+        long start = lineStart(0);
+        while ((start >>> CHUNK_BITS) > firstChunk) {
+            spareChunk = chunks.remove(0);
+            firstChunk++;
+        }
+        // keep the run covering start
+        while (runCount > 1 && runPosition(1) <= start) {
+            firstRun++;
+            runCount--;
+        }
+    }
+
+    /**
+     * ensure last run applies current style to appended characters
+     */
+    private void restoreStyle() {
+        int last = firstRun + runCount - 1;
+        if(runStart[last] >= end)
+            runStyle[last] = style;
+        else if(runStyle[last] != style)
+            addRun(end, style);
+    }
+
+    private long runPosition(int run) {
+        return runStart[firstRun + run];
+    }
+
+    /**
+     * apply current style to overwritten character, runs are only inserted within the last line
+     */
+    private void setStyleAt(long position) {
+        int run = findRun(position);
+        int oldStyle = runStyle[firstRun + run];
+        if(oldStyle == style)
+            return;
+        boolean nextRunFollows = run + 1 < runCount && runPosition(run + 1) == position + 1;
+        if(runPosition(run) == position) {
+            runStyle[firstRun + run] = style;
+        } else {
+            insertRun(++run, position, style);
+        }
+        if(!nextRunFollows && position + 1 < end)
+            insertRun(run + 1, position + 1, oldStyle);
+        restoreStyle();
+    }
+
+    private void insertRun(int run, long position, int style) {
+        addRun(0, 0); // ensure capacity
+        int from = firstRun + run;
+        System.arraycopy(runStart, from, runStart, from + 1, runCount - 1 - run);
+        System.arraycopy(runStyle, from, runStyle, from + 1, runCount - 1 - run);
+        runStart[from] = position;
+        runStyle[from] = style;
+    }
+
+    private void addRun(long position, int style) {
+        if(firstRun + runCount == runStart.length) {
+            if(firstRun > runStart.length / 2) {
+                System.arraycopy(runStart, firstRun, runStart, 0, runCount);
+                System.arraycopy(runStyle, firstRun, runStyle, 0, runCount);
+                firstRun = 0;
+            } else {
+                runStart = Arrays.copyOf(runStart, runStart.length * 2);
+                runStyle = Arrays.copyOf(runStyle, runStyle.length * 2);
+            }
+        }
+        runStart[firstRun + runCount] = position;
+        runStyle[firstRun + runCount] = style;
+        runCount++;
+    }
+
+    /**
+     * @return index of last run starting at or before position
+     */
+    private int findRun(long position) {
+        int lo = 0, hi = runCount - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if(runPosition(mid) <= position)
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+        return lo;
+    }
+}
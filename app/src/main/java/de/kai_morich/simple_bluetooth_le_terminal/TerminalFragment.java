@@ -14,13 +14,11 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
-import android.graphics.Typeface;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
-import android.text.Spannable;
-import android.text.SpannableStringBuilder;
-import android.text.method.ScrollingMovementMethod;
-import android.text.style.ForegroundColorSpan;
+import android.os.Looper;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -28,14 +26,23 @@ import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.EditText;
 import android.widget.TextView;
 import android.widget.Toast;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.fragment.app.Fragment;
-
+import androidx.fragment.app.FragmentManager;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.CharBuffer;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Calendar;
 
 import static android.content.Context.BLUETOOTH_SERVICE;
@@ -46,13 +53,43 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
 
     private enum Connected { False, Pending, True }
 
+    private static final int MAX_LINES = 10000;
+    private static final int AUTO_RECONNECT_ATTEMPTS = 8;
+    private static final int STATS_INTERVAL = 1000;
+    private static final int BACKGROUND_QUEUE_SIZE = 4 * 1024 * 1024;
+    private static final int WRITE_LINGER = 20; // merge keystrokes and short lines into full packets
+    private static final int MAX_FRAME_SIZE = 4096;
+    private static final int REQUEST_SEND_FILE = 1;
+    private static final int REQUEST_EXPORT_JOURNAL = 2;
+
     private String deviceAddress;
     private String newline = "\r\n";
 
-    private TextView receiveText;
+    private TerminalView receiveText;
+    private TextView statsText;
+    private TerminalBuffer receiveBuffer;
+    private AnsiParser ansiParser;
+    private TextDecoder textDecoder;
+    private HexDump hexDump;
+    private int framing = 0; // index in R.array.framing_names, 0 = off
+    private FrameDecoder frameDecoder;
+    private TextDecoder frameHex;
+    private boolean hexEnabled = false;
+    private boolean autoReconnect = false;
+    private boolean coalesceEnabled = false;
+    private SerialQueue.Policy backgroundQueuePolicy = SerialQueue.Policy.DropOldest;
+    private boolean statsEnabled = false;
+    private final Handler statsHandler = new Handler(Looper.getMainLooper());
+    private final Runnable statsRunnable = this::updateStats;
+    private final LinkStats stats = new LinkStats(), statsPrevious = new LinkStats();
+    private PingProbe pingProbe;
+    private int pingCount = 100, pingSize = 32, pingInterval = 100;
+    private FileSender fileSender;
 
     private SerialService service;
+    private SerialSession session;
     private boolean initialStart = true;
+    private boolean switching = false; // keep session connected when replaced by other session
     private Connected connected = Connected.False;
 
     /* Gatt Server: BEGIN */
@@ -69,6 +106,11 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
         setHasOptionsMenu(true);
         setRetainInstance(true);
         deviceAddress = getArguments().getString("device");
+        receiveBuffer = new TerminalBuffer(MAX_LINES); // retained with fragment, so survives orientation change
+        textDecoder = new TextDecoder(TextDecoder.Encoding.UTF8);
+        ansiParser = new AnsiParser(new AnsiTerminal(receiveBuffer, textDecoder));
+        hexDump = new HexDump();
+        frameHex = new TextDecoder(TextDecoder.Encoding.HEX);
 
         /* Gatt Server: BEGIN */
         mBluetoothManager = (BluetoothManager) getActivity().getSystemService(BLUETOOTH_SERVICE);
@@ -134,9 +176,16 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
 
     @Override
     public void onDestroy() {
-        if (connected != Connected.False)
+        if (pingProbe != null)
+            pingProbe.stop();
+        if (fileSender != null)
+            fileSender.cancel();
+        if (connected != Connected.False && !switching)
             disconnect();
-        getActivity().stopService(new Intent(getActivity(), SerialService.class));
+        if (service != null && !switching)
+            service.removeSession(deviceAddress);
+        if (service == null || !service.hasConnectedSessions())
+            getActivity().stopService(new Intent(getActivity(), SerialService.class));
         super.onDestroy();
 
         /* Gatt Server: BEGIN */
@@ -147,16 +196,16 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
     @Override
     public void onStart() {
         super.onStart();
-        if(service != null)
-            service.attach(this);
+        if(session != null)
+            session.attach(this);
         else
             getActivity().startService(new Intent(getActivity(), SerialService.class)); // prevents service destroy on unbind from recreated activity caused by orientation change
     }
 
     @Override
     public void onStop() {
-        if(service != null && !getActivity().isChangingConfigurations())
-            service.detach();
+        if(session != null && !getActivity().isChangingConfigurations())
+            session.detach();
         super.onStop();
     }
 
@@ -180,12 +229,22 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
             initialStart = false;
             getActivity().runOnUiThread(this::connect);
         }
+        if(statsEnabled)
+            startStats();
+    }
+
+    @Override
+    public void onPause() {
+        statsHandler.removeCallbacks(statsRunnable);
+        super.onPause();
     }
 
     @Override
     public void onServiceConnected(ComponentName name, IBinder binder) {
         service = ((SerialService.SerialBinder) binder).getService();
-        service.attach(this);
+        session = service.getSession(deviceAddress);
+        session.setFrameDecoder(frameDecoder); // before attach, so queued data is framed
+        session.attach(this);
         if(initialStart && isResumed()) {
             initialStart = false;
             getActivity().runOnUiThread(this::connect);
@@ -195,6 +254,7 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
     @Override
     public void onServiceDisconnected(ComponentName name) {
         service = null;
+        session = null;
     }
 
     /*
@@ -203,11 +263,14 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
     @Override
     public View onCreateView(@NonNull LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
         View view = inflater.inflate(R.layout.fragment_terminal, container, false);
-        receiveText = view.findViewById(R.id.receive_text);                          // TextView performance decreases with number of spans
+        receiveText = view.findViewById(R.id.receive_text);                          // only visible lines are laid out
         receiveText.setTextColor(getResources().getColor(R.color.colorRecieveText)); // set as default color to reduce number of spans
-        receiveText.setTypeface(Typeface.MONOSPACE);
         receiveText.setTextSize(16.0f);
-        receiveText.setMovementMethod(ScrollingMovementMethod.getInstance());
+        receiveText.setColor(TerminalStyle.SEND, getResources().getColor(R.color.colorSendText));
+        receiveText.setColor(TerminalStyle.STATUS, getResources().getColor(R.color.colorStatusText));
+        receiveText.setBuffer(receiveBuffer);
+        statsText = view.findViewById(R.id.stats_text);
+        statsText.setVisibility(statsEnabled ? View.VISIBLE : View.GONE);
         TextView sendText = view.findViewById(R.id.send_text);
         View sendBtn = view.findViewById(R.id.send_btn);
         sendBtn.setOnClickListener(v -> send(sendText.getText().toString()));
@@ -217,13 +280,18 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
     @Override
     public void onCreateOptionsMenu(Menu menu, MenuInflater inflater) {
         inflater.inflate(R.menu.menu_terminal, menu);
+        menu.findItem(R.id.hex).setChecked(hexEnabled);
+        menu.findItem(R.id.autoReconnect).setChecked(autoReconnect);
+        menu.findItem(R.id.coalesce).setChecked(coalesceEnabled);
+        menu.findItem(R.id.stats).setChecked(statsEnabled);
+        menu.findItem(R.id.journal).setChecked(service != null && service.isJournalStarted());
     }
 
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         int id = item.getItemId();
         if (id == R.id.clear) {
-            receiveText.setText("");
+            receiveText.clear();
             return true;
         } else if (id ==R.id.newline) {
             String[] newlineNames = getResources().getStringArray(R.array.newline_names);
@@ -237,6 +305,126 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
             });
             builder.create().show();
             return true;
+        } else if (id ==R.id.hex) {
+            hexEnabled = !hexEnabled;
+            item.setChecked(hexEnabled);
+            receiveBuffer.cursorToEnd();
+            if(receiveBuffer.getCursor() > 0)
+                receiveBuffer.newLine();
+            hexDump.reset();
+            ansiParser.reset();
+            receiveText.update();
+            return true;
+        } else if (id ==R.id.autoReconnect) {
+            autoReconnect = !autoReconnect;
+            item.setChecked(autoReconnect);
+            if(session != null)
+                session.setAutoReconnect(autoReconnect ? AUTO_RECONNECT_ATTEMPTS : 0);
+            return true;
+        } else if (id ==R.id.coalesce) {
+            coalesceEnabled = !coalesceEnabled;
+            item.setChecked(coalesceEnabled);
+            if(session != null)
+                session.setWriteCoalescing(coalesceEnabled ? WRITE_LINGER : 0);
+            return true;
+        } else if (id ==R.id.backgroundQueue) {
+            String[] policyNames = getResources().getStringArray(R.array.background_queue_names);
+            AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
+            builder.setTitle("Background Queue");
+            builder.setSingleChoiceItems(policyNames, backgroundQueuePolicy.ordinal(), (dialog, item1) -> {
+                backgroundQueuePolicy = SerialQueue.Policy.values()[item1];
+                if(session != null)
+                    session.setBackgroundQueue(BACKGROUND_QUEUE_SIZE, backgroundQueuePolicy);
+                dialog.dismiss();
+            });
+            builder.create().show();
+            return true;
+        } else if (id ==R.id.framing) {
+            String[] framingNames = getResources().getStringArray(R.array.framing_names);
+            AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
+            builder.setTitle("Framing");
+            builder.setSingleChoiceItems(framingNames, framing, (dialog, item1) -> {
+                if(frameDecoder != null)
+                    status(framingNames[framing] + ": " + frameDecoder.getFrames() + " frames, " + frameDecoder.getErrors() + " errors");
+                framing = item1;
+                frameDecoder = createFrameDecoder(framing);
+                if(session != null)
+                    session.setFrameDecoder(frameDecoder);
+                dialog.dismiss();
+            });
+            builder.create().show();
+            return true;
+        } else if (id ==R.id.sessions) {
+            showSessions();
+            return true;
+        } else if (id ==R.id.ping) {
+            if(pingProbe != null && pingProbe.isRunning()) {
+                pingProbe.stop();
+                status("ping stopped, " + pingProbe.getSummary());
+            } else {
+                showPing();
+            }
+            return true;
+        } else if (id ==R.id.sendFile) {
+            if(fileSender != null && fileSender.isRunning()) {
+                fileSender.cancel();
+            } else if(connected != Connected.True) {
+                Toast.makeText(getActivity(), "not connected", Toast.LENGTH_SHORT).show();
+            } else {
+                Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
+                intent.addCategory(Intent.CATEGORY_OPENABLE);
+                intent.setType("*/*");
+                startActivityForResult(Intent.createChooser(intent, "Send file"), REQUEST_SEND_FILE);
+            }
+            return true;
+        } else if (id ==R.id.journal) {
+            if(service == null)
+                return true;
+            if(service.isJournalStarted()) {
+                service.stopJournal();
+                status("journal stopped");
+            } else {
+                try {
+                    service.startJournal();
+                    status("journal started");
+                } catch (Exception e) {
+                    status("journal failed: " + e.getMessage());
+                }
+            }
+            item.setChecked(service.isJournalStarted());
+            return true;
+        } else if (id ==R.id.exportJournal) {
+            if(Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+                Toast.makeText(getActivity(), "requires Android 4.4", Toast.LENGTH_SHORT).show();
+                return true;
+            }
+            Intent intent = new Intent(Intent.ACTION_CREATE_DOCUMENT);
+            intent.addCategory(Intent.CATEGORY_OPENABLE);
+            intent.setType("text/plain");
+            intent.putExtra(Intent.EXTRA_TITLE, "journal.txt");
+            startActivityForResult(intent, REQUEST_EXPORT_JOURNAL);
+            return true;
+        } else if (id ==R.id.stats) {
+            statsEnabled = !statsEnabled;
+            item.setChecked(statsEnabled);
+            statsText.setVisibility(statsEnabled ? View.VISIBLE : View.GONE);
+            if(statsEnabled)
+                startStats();
+            else
+                statsHandler.removeCallbacks(statsRunnable);
+            return true;
+        } else if (id ==R.id.encoding) {
+            String[] encodingNames = getResources().getStringArray(R.array.encoding_names);
+            int pos = textDecoder.getEncoding().ordinal();
+            AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
+            builder.setTitle("Encoding");
+            builder.setSingleChoiceItems(encodingNames, pos, (dialog, item1) -> {
+                textDecoder.setEncoding(TextDecoder.Encoding.values()[item1]);
+                ansiParser.reset();
+                dialog.dismiss();
+            });
+            builder.create().show();
+            return true;
         } else if (id ==R.id.sendCurrentTime) {
             Calendar cl = Calendar.getInstance();
 
@@ -252,13 +440,21 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
      * Serial + UI
      */
     private void connect() {
+        if(session.isConnected()) { // switched back to connected session
+            status("connected");
+            connected = Connected.True;
+            return;
+        }
         try {
             BluetoothAdapter bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
             BluetoothDevice device = bluetoothAdapter.getRemoteDevice(deviceAddress);
             status("connecting...");
             connected = Connected.Pending;
             SerialSocket socket = new SerialSocket(getActivity().getApplicationContext(), device);
-            service.connect(socket);
+            session.setAutoReconnect(autoReconnect ? AUTO_RECONNECT_ATTEMPTS : 0);
+            session.setWriteCoalescing(coalesceEnabled ? WRITE_LINGER : 0);
+            session.setBackgroundQueue(BACKGROUND_QUEUE_SIZE, backgroundQueuePolicy);
+            session.connect(socket);
         } catch (Exception e) {
             onSerialConnectError(e);
         }
@@ -266,175 +462,274 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
 
     private void disconnect() {
         connected = Connected.False;
-        service.disconnect();
+        session.disconnect();
     }
 
-    private void send(String str) {
+    /**
+     * order of R.array.framing_names
+     */
+    private static FrameDecoder createFrameDecoder(int framing) {
+        switch (framing) {
+            case 1: return new FrameDecoder.Line((byte) '\n', MAX_FRAME_SIZE);
+            case 2: return new FrameDecoder.LengthPrefixed(2, true, MAX_FRAME_SIZE);
+            case 3: return new FrameDecoder.Slip(MAX_FRAME_SIZE);
+            case 4: return new FrameDecoder.Cobs(MAX_FRAME_SIZE);
+            default: return null;
+        }
+    }
+
+    /**
+     * link statistics are sampled once per second while shown, rates need two samples
+     */
+    private void startStats() {
+        statsHandler.removeCallbacks(statsRunnable);
+        statsPrevious.clear();
+        statsText.setText("");
+        updateStats();
+    }
+
+    private void updateStats() {
+        if(session != null) {
+            session.getLinkStats(stats);
+            if(statsPrevious.time != 0)
+                statsText.setText(stats.format(statsPrevious));
+            statsPrevious.copyFrom(stats);
+        }
+        statsHandler.postDelayed(statsRunnable, STATS_INTERVAL);
+    }
+
+    /**
+     * send probes to a device echoing received data and show latency percentiles
+     */
+    private void showPing() {
         if(connected != Connected.True) {
             Toast.makeText(getActivity(), "not connected", Toast.LENGTH_SHORT).show();
             return;
         }
+        View view = getActivity().getLayoutInflater().inflate(R.layout.dialog_ping, null);
+        EditText countText = view.findViewById(R.id.ping_count);
+        EditText sizeText = view.findViewById(R.id.ping_size);
+        EditText intervalText = view.findViewById(R.id.ping_interval);
+        countText.setText(String.valueOf(pingCount));
+        sizeText.setText(String.valueOf(pingSize));
+        intervalText.setText(String.valueOf(pingInterval));
+        AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
+        builder.setTitle("Ping");
+        builder.setView(view);
+        builder.setPositiveButton("Start", (dialog, which) -> {
+            try {
+                pingCount = Integer.parseInt(countText.getText().toString());
+                pingSize = Integer.parseInt(sizeText.getText().toString());
+                pingInterval = Integer.parseInt(intervalText.getText().toString());
+                pingProbe = new PingProbe(pingCount, pingSize, pingInterval, newline);
+            } catch (IllegalArgumentException e) {
+                Toast.makeText(getActivity(), e.getMessage(), Toast.LENGTH_SHORT).show();
+                return;
+            }
+            status("ping " + pingCount + " x " + pingSize + " bytes every " + pingInterval + " ms");
+            pingProbe.start(session, this::onPingDone);
+        });
+        builder.setNegativeButton(android.R.string.cancel, null);
+        builder.create().show();
+    }
+
+    private void onPingDone(PingProbe probe, Exception e) {
+        if(e != null)
+            status("ping failed: " + e.getMessage());
+        status(probe.getSummary());
+        if(getActivity() == null)
+            return;
+        AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
+        builder.setTitle("Ping");
+        builder.setMessage(probe.getSummary());
+        builder.setPositiveButton("Share", (dialog, which) -> {
+            Intent intent = new Intent(Intent.ACTION_SEND);
+            intent.setType("text/plain");
+            intent.putExtra(Intent.EXTRA_SUBJECT, "Ping results");
+            intent.putExtra(Intent.EXTRA_TEXT, probe.export());
+            startActivity(Intent.createChooser(intent, "Export ping results"));
+        });
+        builder.setNegativeButton(android.R.string.ok, null);
+        builder.create().show();
+    }
+
+    @Override
+    public void onActivityResult(int requestCode, int resultCode, @Nullable Intent data) {
+        if(requestCode != REQUEST_SEND_FILE && requestCode != REQUEST_EXPORT_JOURNAL) {
+            super.onActivityResult(requestCode, resultCode, data);
+            return;
+        }
+        if(resultCode != Activity.RESULT_OK || data == null || data.getData() == null)
+            return;
+        if(requestCode == REQUEST_EXPORT_JOURNAL) {
+            exportJournal(data);
+            return;
+        }
+        if(connected != Connected.True) {
+            Toast.makeText(getActivity(), "not connected", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        InputStream input;
         try {
-            SpannableStringBuilder spn = new SpannableStringBuilder(str+'\n');
-            spn.setSpan(new ForegroundColorSpan(getResources().getColor(R.color.colorSendText)), 0, spn.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-            receiveText.append(spn);
-            byte[] data = (str + newline).getBytes();
-            service.write(data);
+            input = getActivity().getContentResolver().openInputStream(data.getData());
         } catch (Exception e) {
-            onSerialIoError(e);
+            Toast.makeText(getActivity(), e.getMessage(), Toast.LENGTH_SHORT).show();
+            return;
         }
+        status("sending file, select 'Send File' again to cancel");
+        fileSender = new FileSender(session, input, this::onFileSent);
+        fileSender.start();
     }
 
-    private String spaces(int n) {
-        String s = "";
-        for (int i = 0; i < n; i++)
-            s = s + " ";
-        return s;
+    /**
+     * journal is read from oldest segment in background thread, can run while recording
+     */
+    private void exportJournal(Intent data) {
+        if(service == null)
+            return;
+        File dir = service.getJournalDir();
+        Context context = getActivity().getApplicationContext();
+        Handler mainLooper = new Handler(Looper.getMainLooper());
+        status("exporting journal");
+        new Thread(() -> {
+            String result;
+            try (Writer writer = new BufferedWriter(new OutputStreamWriter(context.getContentResolver().openOutputStream(data.getData())))) {
+                result = "exported " + SerialJournal.export(dir, writer) + " journal records";
+            } catch (Exception e) {
+                result = "journal export failed: " + e.getMessage();
+            }
+            String message = result;
+            mainLooper.post(() -> status(message));
+        }, "JournalExport").start();
     }
 
-    //
-    // ANSI escape sequence analyzer
-    // Handling below subset is enough for nRF52840 sdk17's cli module:
-    /*
-    ESC [ J
-    ESC 7
-    ESC 8
-    ESC [ 1 ; 3_ m
-    ESC [ m
-    ESC [ 4_ m
-    ESC [ K
-    ESC [ H
-    ESC [ 2 J
-    ESC [ ? 3 l
-    ESC [ 6 n
-    ESC [ _ A
-    ESC [ _ B
-    ESC [ _ C
-    ESC [ _ D
-    */
-
-    //
-    private int lex_state = 0;
-    private int escArg = 0;
-    private void lexical_analize(String s){
-
-        char c;
-        String t;
-        for (int i = 0; i < s.length(); i++) {
-            c = s.charAt(i);
-            t = s.substring(i, i + 1);
-            switch (lex_state) {
-                case 0:
-                    switch (c) {
-                        case '\033':
-                            lex_state = 1;
-                            break;
-                        default:
-                            receiveText.append(t);
-                            break;
-                    }
-                    break;
-                case 1:
-                    switch (c) {
-                        case '[':
-                            lex_state = 2;
-                            escArg = 0;
-                            break;
-                        case '7':
-                        case '8':
-                            lex_state = 0;
-                            break;
-                        default:
-                            lex_state = 0;
-                            break;
-                    }
-                    break;
-                case 2:
-                    if (c >= '0' && c <= '9') {
-                        escArg *= 10;
-                        escArg += c - '0';
-                    } else {
-                        switch (c) {
-                            case 'A':
-                            case 'B':
-                                lex_state = 0;
-                                break;
-                            case 'C':
-                                if (escArg == 0)
-                                    escArg = 1;
-                                receiveText.append(spaces(escArg));
-                                lex_state = 0;
-                                break;
-                            case 'D':
-                                if (escArg == 0)
-                                    escArg = 1;
-                                receiveText.setText(receiveText.getText().toString().substring(0, receiveText.getText().length() - escArg));
-                                lex_state = 0;
-                                break;
-                            case ';':
-                                lex_state = 3;
-                                escArg = 0;
-                                break;
-                            case 'H':
-                            case 'J':
-                            case 'K':
-                            case 'm':
-                            case 'n':
-                                lex_state = 0;
-                                break;
-                            case '?':
-                                lex_state = 4;
-                                break;
-                            default:
-                                lex_state = 0;
-                                break;
-                        }
-                    }
-                    break;
-                case 3:
-                    if (c >= '0' && c <= '9') {
-                        escArg *= 10;
-                        escArg += c - '0';
-                        lex_state = 2;
-                    } else {
-                        lex_state = 0;
-                    }
-                    break;
-                case 4:
-                    switch (c) {
-                        case '3':
-                            lex_state = 5;
-                            break;
-                        default:
-                            lex_state = 0;
-                            break;
-                    }
-                    break;
-                case 5:
-                    switch (c) {
-                        case 'l':
-                            lex_state = 0;
-                            break;
-                        default:
-                            lex_state = 0;
-                            break;
-                    }
-                    break;
-                default:
-                    lex_state = 0;
-                    break;
+    private void onFileSent(long bytes, long millis, Exception e) {
+        if(e != null)
+            status("send file failed after " + bytes + " bytes: " + e.getMessage());
+        else
+            status("sent " + bytes + " bytes in " + millis + " ms");
+    }
+
+    /**
+     * other sessions stay connected in the background and queue received data until shown again
+     */
+    private void showSessions() {
+        if(service == null)
+            return;
+        ArrayList<SerialSession> sessions = new ArrayList<>();
+        ArrayList<String> names = new ArrayList<>();
+        for(SerialSession session : service.getSessions()) {
+            if(session.isConnected() || session == this.session) {
+                sessions.add(session);
+                names.add((session == this.session ? "* " : "") + session.getName()
+                        + "\nrx " + session.getReadBytes() + " / tx " + session.getWriteBytes() + " bytes");
+            }
+        }
+        names.add("Connect another device");
+        AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
+        builder.setTitle("Sessions");
+        builder.setItems(names.toArray(new String[0]), (dialog, item1) -> {
+            if(item1 == sessions.size())
+                switchSession(null);
+            else if(sessions.get(item1) != session)
+                switchSession(sessions.get(item1).getAddress());
+        });
+        builder.create().show();
+    }
+
+    /**
+     * replace this fragment by terminal for other session, or device list if address == null
+     */
+    private void switchSession(String address) {
+        switching = connected != Connected.False;
+        FragmentManager fragmentManager = getFragmentManager();
+        fragmentManager.popBackStack();
+        if(address != null) {
+            Bundle args = new Bundle();
+            args.putString("device", address);
+            Fragment fragment = new TerminalFragment();
+            fragment.setArguments(args);
+            fragmentManager.beginTransaction().replace(R.id.fragment, fragment, "terminal").addToBackStack(null).commit();
+        }
+    }
+
+    private void send(String str) {
+        if(connected != Connected.True) {
+            Toast.makeText(getActivity(), "not connected", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        byte[] data;
+        if(hexEnabled) {
+            try {
+                data = HexDump.parse(str);
+            } catch (IllegalArgumentException e) {
+                Toast.makeText(getActivity(), e.getMessage(), Toast.LENGTH_SHORT).show();
+                return;
             }
+        } else {
+            data = (str + newline).getBytes();
         }
+        try {
+            session.write(data);
+        } catch (WriteBudgetException e) {
+            Toast.makeText(getActivity(), "busy, try again", Toast.LENGTH_SHORT).show();
+            return;
+        } catch (Exception e) {
+            onSerialIoError(e);
+            return;
+        }
+        endHexDumpLine();
+        receiveBuffer.setStyle(TerminalStyle.SEND);
+        receiveBuffer.append(str+'\n');
+        receiveText.update();
     }
 
     private void receive(byte[] data) {
-        lexical_analize(new String(data));
+        receive(data, data.length);
+    }
+
+    private void receive(byte[] data, int length) {
+        if(frameDecoder != null) // shown with onSerialFrame
+            return;
+        if(hexEnabled) {
+            receiveBuffer.setStyle(TerminalStyle.DEFAULT);
+            hexDump.dump(data, 0, length, receiveBuffer);
+        } else if(textDecoder.getEncoding() == TextDecoder.Encoding.HEX) {
+            receiveBuffer.setStyle(TerminalStyle.DEFAULT);
+            CharBuffer chars = textDecoder.decode(data, 0, length); // escape sequences shown as hex, not parsed
+            receiveBuffer.append(chars.array(), chars.arrayOffset() + chars.position(), chars.remaining());
+        } else {
+            ansiParser.parse(data, 0, length);
+        }
+        receiveText.update();
+    }
+
+    /**
+     * one line per frame, text for line framing, else hex
+     */
+    private void receiveFrame(byte[] data, int offset, int length) {
+        endHexDumpLine();
+        receiveBuffer.setStyle(TerminalStyle.DEFAULT);
+        CharBuffer chars = (frameDecoder instanceof FrameDecoder.Line ? textDecoder : frameHex).decode(data, offset, length);
+        receiveBuffer.append(chars.array(), chars.arrayOffset() + chars.position(), chars.remaining());
+        receiveBuffer.newLine();
+        receiveText.update();
+    }
+
+    /**
+     * keep partial hex dump line, it is rewritten on a new line by the next receive
+     */
+    private void endHexDumpLine() {
+        receiveBuffer.cursorToEnd();
+        if(hexEnabled && receiveBuffer.getCursor() > 0)
+            receiveBuffer.newLine();
     }
 
     private void status(String str) {
-        SpannableStringBuilder spn = new SpannableStringBuilder(str+'\n');
-        spn.setSpan(new ForegroundColorSpan(getResources().getColor(R.color.colorStatusText)), 0, spn.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-        receiveText.append(spn);
+        endHexDumpLine();
+        receiveBuffer.setStyle(TerminalStyle.STATUS);
+        receiveBuffer.append(str+'\n');
+        receiveText.update();
     }
 
     /*
@@ -457,8 +752,23 @@ public class TerminalFragment extends Fragment implements ServiceConnection, Ser
         receive(data);
     }
 
+    @Override
+    public void onSerialReadBatch(byte[] data, int length) {
+        receive(data, length);
+    }
+
+    @Override
+    public void onSerialFrame(byte[] data, int offset, int length) {
+        receiveFrame(data, offset, length);
+    }
+
     @Override
     public void onSerialIoError(Exception e) {
+        if(e instanceof ConnectionLostException && ((ConnectionLostException) e).isReconnecting()) {
+            status("connection lost: " + e.getMessage() + ", reconnecting...");
+            connected = Connected.Pending;
+            return;
+        }
         status("connection lost: " + e.getMessage());
         disconnect();
     }
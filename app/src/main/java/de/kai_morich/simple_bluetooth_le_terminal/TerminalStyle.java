@@ -0,0 +1,27 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+/**
+ * style value stored in TerminalBuffer runs
+ *   - bits 0..7 foreground color, bits 8..15 background color, bit 16 bold
+ *   - color 0 = default, 1..8 = ANSI colors 30..37, 9..16 = bright colors 90..97,
+ *     SEND and STATUS for terminal generated text
+ */
+final class TerminalStyle {
+
+    static final int DEFAULT = 0;
+    static final int COLOR_COUNT = 19;
+    static final int SEND = 17;
+    static final int STATUS = 18;
+
+    private static final int BOLD = 1 << 16;
+
+    static int foreground(int style) { return style & 0xff; }
+    static int background(int style) { return (style >> 8) & 0xff; }
+    static boolean bold(int style) { return (style & BOLD) != 0; }
+
+    static int withForeground(int style, int color) { return (style & ~0xff) | color; }
+    static int withBackground(int style, int color) { return (style & ~0xff00) | (color << 8); }
+    static int withBold(int style, boolean bold) { return bold ? style | BOLD : style & ~BOLD; }
+
+    private TerminalStyle() {}
+}
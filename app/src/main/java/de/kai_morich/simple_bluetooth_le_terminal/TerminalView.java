@@ -0,0 +1,182 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import android.content.Context;
+import android.graphics.Typeface;
+import android.text.SpannableString;
+import android.text.Spanned;
+import android.text.style.BackgroundColorSpan;
+import android.text.style.ForegroundColorSpan;
+import android.text.style.StyleSpan;
+import android.util.AttributeSet;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+
+import java.util.Arrays;
+
+/**
+ * virtualized terminal output, only visible lines of TerminalBuffer are laid out
+ * call update() after modifying the buffer
+ *
+ * span objects are stateless, so they are pooled per style and shared by all lines.
+ * Within a line the n-th use of a style gets the n-th pooled instance, as a Spannable can hold an instance only once.
+ */
+public class TerminalView extends RecyclerView {
+
+    private static final int BOLD_SPAN = 2 * TerminalStyle.COLOR_COUNT;
+    private static final int[] ANSI_COLORS = {
+            0,
+            0xff000000, 0xffcd3131, 0xff0dbc79, 0xffe5e510, 0xff2472c8, 0xffbc3fbc, 0xff11a8cd, 0xffe5e5e5,
+            0xff666666, 0xfff14c4c, 0xff23d18b, 0xfff5f543, 0xff3b8eea, 0xffd670d6, 0xff29b8db, 0xffffffff,
+    };
+
+    private final LinearLayoutManager layoutManager;
+    private final LineAdapter adapter;
+    private final StringBuilder lineText = new StringBuilder();
+    private final int[] colors = Arrays.copyOf(ANSI_COLORS, TerminalStyle.COLOR_COUNT);
+    private final Object[][] spanPool = new Object[BOLD_SPAN + 1][];
+    private final int[] spanUsed = new int[BOLD_SPAN + 1];
+    private final TerminalBuffer.RunVisitor spanVisitor = this::setSpans;
+    private SpannableString spanText;
+
+    private TerminalBuffer buffer;
+    private int lineCount;      // as known by adapter
+    private long droppedLines;
+    private int textColor;
+    private float textSize = 16.0f;
+
+    public TerminalView(@NonNull Context context) {
+        this(context, null);
+    }
+
+    public TerminalView(@NonNull Context context, @Nullable AttributeSet attrs) {
+        super(context, attrs);
+        layoutManager = new LinearLayoutManager(context);
+        layoutManager.setStackFromEnd(true);
+        adapter = new LineAdapter();
+        setLayoutManager(layoutManager);
+        setAdapter(adapter);
+        setItemAnimator(null);
+    }
+
+    void setBuffer(TerminalBuffer buffer) {
+        this.buffer = buffer;
+        lineCount = buffer.getLineCount();
+        droppedLines = buffer.getDroppedLines();
+        adapter.notifyDataSetChanged();
+        scrollToPosition(lineCount - 1);
+    }
+
+    void setTextColor(int color) { textColor = color; }
+
+    /**
+     * @param color one of the TerminalStyle colors
+     */
+    void setColor(int color, int value) {
+        colors[color] = value;
+        spanPool[color] = null;
+        spanPool[TerminalStyle.COLOR_COUNT + color] = null;
+    }
+    void setTextSize(float size) { textSize = size; }
+
+    void clear() {
+        buffer.clear();
+        setBuffer(buffer);
+    }
+
+    void update() {
+        boolean atBottom = layoutManager.findLastVisibleItemPosition() >= lineCount - 1;
+        int newCount = buffer.getLineCount();
+        long dropped = buffer.getDroppedLines();
+        int removed = (int) Math.min(dropped - droppedLines, lineCount);
+        int kept = lineCount - removed;
+        lineCount = newCount;
+        droppedLines = dropped;
+        if(removed > 0)
+            adapter.notifyItemRangeRemoved(0, removed);
+        if(kept > 0)
+            adapter.notifyItemChanged(kept - 1); // last line might have been modified
+        if(newCount > kept)
+            adapter.notifyItemRangeInserted(kept, newCount - kept);
+        if(atBottom)
+            scrollToPosition(newCount - 1);
+    }
+
+    private CharSequence getLine(int line) {
+        lineText.setLength(0);
+        buffer.getLine(line, lineText);
+        spanText = new SpannableString(lineText);
+        Arrays.fill(spanUsed, 0);
+        buffer.visitStyleRuns(line, spanVisitor);
+        SpannableString text = spanText;
+        spanText = null;
+        return text;
+    }
+
+    private void setSpans(int from, int to, int style) {
+        if(style == TerminalStyle.DEFAULT)
+            return;
+        int foreground = TerminalStyle.foreground(style);
+        int background = TerminalStyle.background(style);
+        if(foreground != TerminalStyle.DEFAULT)
+            spanText.setSpan(getSpan(foreground), from, to, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        if(background != TerminalStyle.DEFAULT)
+            spanText.setSpan(getSpan(TerminalStyle.COLOR_COUNT + background), from, to, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        if(TerminalStyle.bold(style))
+            spanText.setSpan(getSpan(BOLD_SPAN), from, to, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+    }
+
+    private Object getSpan(int key) {
+        int index = spanUsed[key]++;
+        Object[] pool = spanPool[key];
+        if(pool == null || index >= pool.length) {
+            pool = pool == null ? new Object[4] : Arrays.copyOf(pool, pool.length * 2);
+            spanPool[key] = pool;
+        }
+        if(pool[index] == null) {
+            if(key < TerminalStyle.COLOR_COUNT)
+                pool[index] = new ForegroundColorSpan(colors[key]);
+            else if(key < BOLD_SPAN)
+                pool[index] = new BackgroundColorSpan(colors[key - TerminalStyle.COLOR_COUNT]);
+            else
+                pool[index] = new StyleSpan(Typeface.BOLD);
+        }
+        return pool[index];
+    }
+
+    private static class LineHolder extends ViewHolder {
+        final TextView text;
+
+        LineHolder(TextView text) {
+            super(text);
+            this.text = text;
+        }
+    }
+
+    private class LineAdapter extends Adapter<LineHolder> {
+        @NonNull
+        @Override
+        public LineHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+            TextView text = new TextView(parent.getContext());
+            text.setLayoutParams(new LayoutParams(LayoutParams.MATCH_PARENT, LayoutParams.WRAP_CONTENT));
+            text.setTypeface(Typeface.MONOSPACE);
+            text.setTextSize(textSize);
+            text.setTextColor(textColor);
+            return new LineHolder(text);
+        }
+
+        @Override
+        public void onBindViewHolder(@NonNull LineHolder holder, int position) {
+            holder.text.setText(getLine(position));
+        }
+
+        @Override
+        public int getItemCount() {
+            return buffer != null ? lineCount : 0;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * streaming decoder for received bytes
+ *   - incomplete multi-byte sequences stay in the input buffer until the next call,
+ *     so characters split across BLE notifications are decoded correctly
+ *   - input and output buffers are reused and only grow, no allocation per call
+ *   - Hex encoding shows each byte as two hex digits and a space
+ */
+class TextDecoder {
+
+    enum Encoding { UTF8, LATIN1, HEX }
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private Encoding encoding;
+    private CharsetDecoder decoder;
+    private ByteBuffer input = ByteBuffer.allocate(1024);
+    private CharBuffer output = CharBuffer.allocate(1024);
+
+    TextDecoder(Encoding encoding) {
+        setEncoding(encoding);
+    }
+
+    Encoding getEncoding() { return encoding; }
+
+    void setEncoding(Encoding encoding) {
+        this.encoding = encoding;
+        switch (encoding) {
+            case UTF8:   decoder = newDecoder("UTF-8"); break;
+            case LATIN1: decoder = newDecoder("ISO-8859-1"); break;
+            default:     decoder = null; break;
+        }
+        input.clear();
+    }
+
+    /**
+     * @return decoded characters, only valid until next call
+     */
+    CharBuffer decode(byte[] data, int offset, int length) {
+        output.clear();
+        if(decoder == null) {
+            ensureOutput(length * 3);
+            char[] chars = output.array();
+            int pos = 0;
+            for (int i = offset; i < offset + length; i++) {
+                chars[pos++] = HEX_DIGITS[(data[i] >> 4) & 0xf];
+                chars[pos++] = HEX_DIGITS[data[i] & 0xf];
+                chars[pos++] = ' ';
+            }
+            output.position(pos);
+        } else {
+            if(input.remaining() < length) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(input.capacity() * 2, input.position() + length));
+                input.flip();
+                larger.put(input);
+                input = larger;
+            }
+            input.put(data, offset, length);
+            input.flip();
+            ensureOutput(input.remaining() + 1); // max. one char per byte, +1 for surrogate pair
+            while (decoder.decode(input, output, false) == CoderResult.OVERFLOW)
+                ensureOutput(output.capacity() * 2);
+            input.compact(); // keep incomplete sequence
+        }
+        output.flip();
+        return output;
+    }
+
+    private void ensureOutput(int size) {
+        if(output.capacity() - output.position() < size) {
+            CharBuffer larger = CharBuffer.allocate(output.position() + Math.max(size, output.capacity()));
+            output.flip();
+            larger.put(output);
+            output = larger;
+        }
+    }
+
+    private static CharsetDecoder newDecoder(String charset) {
+        return Charset.forName(charset).newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+}
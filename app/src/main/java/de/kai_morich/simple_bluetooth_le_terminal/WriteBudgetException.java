@@ -0,0 +1,16 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import java.io.IOException;
+
+/**
+ * write rejected because unconfirmed data exceeds the write budget
+ *   - connection is still usable, retry when earlier writes are confirmed
+ */
+class WriteBudgetException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    WriteBudgetException() {
+        super("write budget exceeded");
+    }
+}
@@ -0,0 +1,68 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * completion handle returned by SerialSession.writeAsync()
+ *   - done when onCharacteristicWrite confirmed the last chunk of this write
+ *   - failed with IOException if the connection is lost before,
+ *     then the data is not resent on automatic reconnect
+ */
+class WriteFuture implements Future<Void> {
+
+    final long startOffset, endOffset; // position of first and after last byte in SerialSocket write stream
+
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile IOException error;
+
+    WriteFuture(long startOffset, long endOffset) {
+        this.startOffset = startOffset;
+        this.endOffset = endOffset;
+    }
+
+    void complete() {
+        done.countDown();
+    }
+
+    void fail(IOException e) {
+        error = e;
+        done.countDown();
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false; // data might already be sent
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    @Override
+    public Void get() throws InterruptedException, ExecutionException {
+        done.await();
+        if(error != null)
+            throw new ExecutionException(error);
+        return null;
+    }
+
+    @Override
+    public Void get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if(!done.await(timeout, unit))
+            throw new TimeoutException("write not confirmed");
+        if(error != null)
+            throw new ExecutionException(error);
+        return null;
+    }
+}
@@ -0,0 +1,138 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * sequences as sent by nRF52840 sdk17 cli module
+ */
+public class AnsiParserTest {
+
+    private static class Trace implements AnsiParser.Sink {
+        final StringBuilder sb = new StringBuilder();
+        @Override public void onText(byte[] data, int offset, int length) { // bytes as chars, so split runs can be merged
+            sb.append('"').append(new String(data, offset, length, StandardCharsets.ISO_8859_1)).append('"');
+        }
+        @Override public void onControl(byte c) { sb.append('^').append((int) c); }
+        @Override public void onEscape(char command) { sb.append("ESC").append(command); }
+        @Override public void onCsi(char command, int[] params, int paramCount, boolean privateMode) {
+            sb.append("CSI");
+            if(privateMode)
+                sb.append('?');
+            for(int i = 0; i < paramCount; i++)
+                sb.append(i == 0 ? "" : ";").append(params[i]);
+            sb.append(command);
+        }
+    }
+
+    private static String parse(String s) {
+        Trace trace = new Trace();
+        byte[] data = s.getBytes(StandardCharsets.UTF_8);
+        new AnsiParser(trace).parse(data, 0, data.length);
+        return trace.sb.toString();
+    }
+
+    /**
+     * same input split into 1 byte packets
+     */
+    private static String parseBytewise(String s) {
+        Trace trace = new Trace();
+        AnsiParser parser = new AnsiParser(trace);
+        for(byte b : s.getBytes(StandardCharsets.UTF_8))
+            parser.parse(new byte[]{b}, 0, 1);
+        return trace.sb.toString().replace("\"\"", ""); // merge text runs
+    }
+
+    private static String terminal(String s) {
+        TerminalBuffer buffer = new TerminalBuffer(100);
+        AnsiParser parser = new AnsiParser(new AnsiTerminal(buffer, new TextDecoder(TextDecoder.Encoding.UTF8)));
+        byte[] data = s.getBytes(StandardCharsets.UTF_8);
+        parser.parse(data, 0, data.length);
+        StringBuilder sb = new StringBuilder();
+        for(int i = 0; i < buffer.getLineCount(); i++) {
+            if(i > 0)
+                sb.append('\n');
+            buffer.getLine(i, sb);
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void cliSequences() {
+        assertEquals("ESC7", parse("\u001b7"));
+        assertEquals("ESC8", parse("\u001b8"));
+        assertEquals("CSIJ", parse("\u001b[J"));
+        assertEquals("CSI2J", parse("\u001b[2J"));
+        assertEquals("CSIK", parse("\u001b[K"));
+        assertEquals("CSIH", parse("\u001b[H"));
+        assertEquals("CSI?3l", parse("\u001b[?3l"));
+        assertEquals("CSI6n", parse("\u001b[6n"));
+        assertEquals("CSIm", parse("\u001b[m"));
+        assertEquals("CSI1;32m", parse("\u001b[1;32m"));
+        assertEquals("CSI40m", parse("\u001b[40m"));
+        assertEquals("CSI5A", parse("\u001b[5A"));
+        assertEquals("CSI1B", parse("\u001b[1B"));
+        assertEquals("CSI12C", parse("\u001b[12C"));
+        assertEquals("CSI3D", parse("\u001b[3D"));
+    }
+
+    @Test
+    public void prompt() {
+        String prompt = "\r\n\u001b[1;32muart:~$ \u001b[m";
+        assertEquals("^13^10CSI1;32m\"uart:~$ \"CSIm", parse(prompt));
+        assertEquals(parse(prompt), parseBytewise(prompt));
+    }
+
+    @Test
+    public void splitAcrossPackets() {
+        String s = "\u001b[1;32mkernel\u001b[K\u001b[12D\u001b7abc\u001b8";
+        assertEquals(parse(s), parseBytewise(s));
+    }
+
+    @Test
+    public void controlInsideSequence() {
+        assertEquals("^13CSI5C", parse("\u001b[5\rC"));
+    }
+
+    @Test
+    public void abortedSequence() {
+        assertEquals("CSI2J", parse("\u001b[1;\u001b[2J"));
+    }
+
+    @Test
+    public void utf8PassedAsText() {
+        String expected = '"' + new String("\u00b0C \u2713".getBytes(StandardCharsets.UTF_8), StandardCharsets.ISO_8859_1) + '"';
+        assertEquals(expected, parse("\u00b0C \u2713"));
+        assertEquals(expected, parseBytewise("\u00b0C \u2713"));
+    }
+
+    @Test
+    public void lineEditing() {
+        // typed "helo", backspace and erase rest of line, then corrected
+        assertEquals("uart:~$ hello", terminal("uart:~$ helo\b\u001b[Klo"));
+        // history recall: cursor to prompt end, erase rest of line, write recalled command
+        assertEquals("uart:~$ kernel uptime", terminal("uart:~$ help\u001b[4D\u001b[Kkernel uptime"));
+        // save cursor, write hint, restore and overwrite
+        assertEquals("uart:~$ abcdef", terminal("uart:~$ \u001b7xyz\u001b8abcdef"));
+    }
+
+    @Test
+    public void colors() {
+        TerminalBuffer buffer = new TerminalBuffer(10);
+        AnsiParser parser = new AnsiParser(new AnsiTerminal(buffer, new TextDecoder(TextDecoder.Encoding.UTF8)));
+        byte[] data = "\u001b[1;32mok\u001b[m".getBytes(StandardCharsets.UTF_8);
+        parser.parse(data, 0, data.length);
+        int[] style = new int[1];
+        buffer.visitStyleRuns(0, (from, to, s) -> style[0] = s);
+        assertTrue(TerminalStyle.bold(style[0]));
+        assertEquals(3, TerminalStyle.foreground(style[0]));
+        buffer.append('x');
+        buffer.visitStyleRuns(0, (from, to, s) -> style[0] = s);
+        assertFalse(TerminalStyle.bold(style[0]));
+    }
+}
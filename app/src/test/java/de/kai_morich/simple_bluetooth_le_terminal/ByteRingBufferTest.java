@@ -0,0 +1,79 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ByteRingBufferTest {
+
+    @Test
+    public void wrapAround() {
+        ByteRingBuffer ring = new ByteRingBuffer(10, 4);
+        byte[] data = {0, 1, 2, 3, 4, 5, 6, 7};
+        assertTrue(ring.put(data, 0, 8));
+        assertArrayEquals(new byte[]{0, 1, 2, 3}, ring.take(4));
+        assertArrayEquals(new byte[]{4, 5, 6, 7}, ring.take(4));
+        assertTrue(ring.put(data, 0, 6)); // tail wraps at 8
+        assertArrayEquals(new byte[]{0, 1, 2, 3}, ring.take(4));
+        assertArrayEquals(new byte[]{4, 5}, ring.take(4));
+        assertNull(ring.take(4));
+    }
+
+    @Test
+    public void full() {
+        ByteRingBuffer ring = new ByteRingBuffer(4, 4);
+        byte[] data = {1, 2, 3};
+        assertTrue(ring.put(data, 0, 3));
+        assertFalse(ring.put(data, 0, 2));
+        assertEquals(3, ring.size());
+        assertTrue(ring.put(data, 0, 1));
+        assertEquals(0, ring.available());
+    }
+
+    @Test
+    public void peekSkip() {
+        ByteRingBuffer ring = new ByteRingBuffer(8, 8);
+        ring.put(new byte[]{1, 2, 3}, 0, 3);
+        assertArrayEquals(new byte[]{1, 2}, ring.peek(2));
+        assertEquals(3, ring.size());
+        ring.skip(2);
+        assertArrayEquals(new byte[]{3}, ring.take(8));
+        assertTrue(ring.isEmpty());
+    }
+
+    @Test
+    public void chunkReused() {
+        ByteRingBuffer ring = new ByteRingBuffer(64, 20);
+        byte[] data = new byte[40];
+        ring.put(data, 0, data.length);
+        assertSame(ring.take(20), ring.take(20));
+    }
+
+    @Test
+    public void steadyStateNoAllocation() {
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        ByteRingBuffer ring = new ByteRingBuffer(4096, 244);
+        byte[] data = new byte[1000];
+        for(int i = 0; i < 100; i++) // warm up chunk arrays and JIT
+            steadyState(ring, data);
+        long thread = Thread.currentThread().getId();
+        long before = bean.getThreadAllocatedBytes(thread);
+        for(int i = 0; i < 10000; i++)
+            steadyState(ring, data);
+        long allocated = bean.getThreadAllocatedBytes(thread) - before;
+        assertTrue("allocated " + allocated + " bytes", allocated < 10000); // ~10 MB written
+    }
+
+    private static void steadyState(ByteRingBuffer ring, byte[] data) {
+        ring.put(data, 0, data.length);
+        while(ring.take(244) != null)
+            ;
+    }
+}
@@ -0,0 +1,140 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * simulated Telit TIO peer sending as fast as read credits allow.
+ * Credit writes are serialized like in GattQueue, the peer gets credits after half the round trip
+ */
+public class CreditControllerTest {
+
+    private static final int DURATION = 10000; // ms
+
+    private interface Policy {
+        int initialGrant(long now);
+        int onNotification(long now);
+        void onGrantDone(long now);
+    }
+
+    private static class Adaptive implements Policy {
+        final CreditController controller = new CreditController();
+        @Override public int initialGrant(long now) { return controller.initialGrant(now); }
+        @Override public int onNotification(long now) { return controller.onNotification(now); }
+        @Override public void onGrantDone(long now) { controller.onGrantDone(now); }
+    }
+
+    /**
+     * previous TelitDelegate.grantReadCredits
+     */
+    private static class Fixed implements Policy {
+        int readCredits;
+        @Override public int initialGrant(long now) { return onNotification(now); }
+        @Override public int onNotification(long now) {
+            if(readCredits > 0)
+                readCredits -= 1;
+            if(readCredits > 16)
+                return 0;
+            int newCredits = 64 - readCredits;
+            readCredits += newCredits;
+            return newCredits;
+        }
+        @Override public void onGrantDone(long now) { }
+    }
+
+    private static class Result {
+        long notifications, creditWrites;
+    }
+
+    /**
+     * @param rate notifications per ms the peer could send with unlimited credits
+     * @param rtt credit write round trip in ms
+     */
+    private static Result simulate(Policy policy, double rate, int rtt) {
+        Result result = new Result();
+        ArrayDeque<Integer> writes = new ArrayDeque<>(); // queued credit writes
+        int peerCredits = 0;
+        int inFlight = 0; // credits of current write
+        long writeStart = -1;
+        double budget = 0;
+        int grant = policy.initialGrant(0);
+        if(grant > 0)
+            writes.add(grant);
+        for (long now = 0; now < DURATION; now++) {
+            if(writeStart >= 0 && now == writeStart + rtt / 2)
+                peerCredits += inFlight;
+            if(writeStart >= 0 && now == writeStart + rtt) {
+                policy.onGrantDone(now);
+                writeStart = -1;
+            }
+            if(writeStart < 0 && !writes.isEmpty()) {
+                inFlight = writes.poll();
+                writeStart = now;
+                result.creditWrites++;
+            }
+            budget = Math.min(budget + rate, Math.max(rate, 1));
+            while (budget >= 1 - 1e-9 && peerCredits > 0) {
+                budget -= 1;
+                peerCredits--;
+                result.notifications++;
+                grant = policy.onNotification(now);
+                if(grant > 0)
+                    writes.add(grant);
+            }
+        }
+        return result;
+    }
+
+    @Test
+    public void fastPeerLongRoundTrip() {
+        Result fixed = simulate(new Fixed(), 1, 60);
+        Result adaptive = simulate(new Adaptive(), 1, 60);
+        String message = "fixed " + fixed.notifications + "/" + fixed.creditWrites
+                + ", adaptive " + adaptive.notifications + "/" + adaptive.creditWrites + " notifications/credit writes";
+        assertTrue(message, adaptive.notifications > 1.2 * fixed.notifications);
+        assertTrue(message, adaptive.notifications > 0.95 * DURATION);
+        assertTrue(message, adaptive.creditWrites <= fixed.creditWrites * 1.2);
+    }
+
+    @Test
+    public void veryFastPeer() {
+        for (int rate = 3; rate <= 6; rate++) {
+            Result fixed = simulate(new Fixed(), rate, 30);
+            Result adaptive = simulate(new Adaptive(), rate, 30);
+            assertTrue("rate " + rate + "/ms: fixed " + fixed.notifications + ", adaptive " + adaptive.notifications + " notifications",
+                    adaptive.notifications > 1.5 * fixed.notifications);
+        }
+    }
+
+    /**
+     * rate limited by peer, both keep up and adaptive needs no more credit writes
+     */
+    @Test
+    public void slowPeer() {
+        Result fixed = simulate(new Fixed(), 0.1, 30);
+        Result adaptive = simulate(new Adaptive(), 0.1, 30);
+        String message = "fixed " + fixed.notifications + "/" + fixed.creditWrites
+                + ", adaptive " + adaptive.notifications + "/" + adaptive.creditWrites + " notifications/credit writes";
+        assertEquals(message, fixed.notifications, adaptive.notifications, 10);
+        assertTrue(message, adaptive.notifications >= 0.1 * DURATION * 0.99);
+        assertTrue(message, adaptive.creditWrites <= fixed.creditWrites);
+    }
+
+    @Test
+    public void windowBounds() {
+        CreditController controller = new CreditController();
+        assertEquals(CreditController.MIN_WINDOW, controller.initialGrant(1000));
+        controller.onGrantDone(1500); // very long round trip
+        long now = 1500;
+        for (int i = 0; i < 1000; i++)
+            controller.onNotification(now++);
+        assertEquals(CreditController.MAX_WINDOW, controller.getWindow());
+        controller.reset();
+        assertEquals(CreditController.MIN_WINDOW, controller.getWindow());
+        assertEquals(0, controller.getOutstanding());
+    }
+}
@@ -0,0 +1,190 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class FrameDecoderTest {
+
+    private static final int MAX_FRAME_SIZE = 600;
+
+    private static class Collector implements SerialListener {
+        final List<byte[]> frames = new ArrayList<>();
+        @Override public void onSerialConnect() { }
+        @Override public void onSerialConnectError(Exception e) { }
+        @Override public void onSerialRead(byte[] data) { }
+        @Override public void onSerialIoError(Exception e) { }
+        @Override public void onSerialFrame(byte[] data, int offset, int length) {
+            frames.add(Arrays.copyOfRange(data, offset, offset + length));
+        }
+    }
+
+    private interface Encoder {
+        void encode(byte[] frame, ByteArrayOutputStream out);
+    }
+
+    private static void line(byte[] frame, ByteArrayOutputStream out) {
+        out.write(frame, 0, frame.length);
+        out.write('\n');
+    }
+
+    private static void lengthPrefixed(byte[] frame, ByteArrayOutputStream out) {
+        out.write(frame.length >> 8);
+        out.write(frame.length);
+        out.write(frame, 0, frame.length);
+    }
+
+    private static void slip(byte[] frame, ByteArrayOutputStream out) {
+        for (byte b : frame) {
+            if(b == (byte) 0xC0) {
+                out.write(0xDB);
+                out.write(0xDC);
+            } else if(b == (byte) 0xDB) {
+                out.write(0xDB);
+                out.write(0xDD);
+            } else {
+                out.write(b);
+            }
+        }
+        out.write(0xC0);
+    }
+
+    private static void cobs(byte[] frame, ByteArrayOutputStream out) {
+        int start = 0;
+        while (true) {
+            int end = start;
+            while (end < frame.length && frame[end] != 0 && end - start < 254)
+                end++;
+            out.write(end - start + 1);
+            out.write(frame, start, end - start);
+            if(end == frame.length)
+                break;
+            start = frame[end] == 0 ? end + 1 : end; // trailing zero gives empty last block
+        }
+        out.write(0);
+    }
+
+    /**
+     * random frames encoded into one stream, decoded with random split points
+     */
+    private static void fuzz(FrameDecoder decoder, Encoder encoder, boolean text, boolean allowEmpty) {
+        Random random = new Random(1);
+        for (int run = 0; run < 300; run++) {
+            decoder.reset();
+            List<byte[]> frames = new ArrayList<>();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            int count = 1 + random.nextInt(20);
+            for (int i = 0; i < count; i++) {
+                int size = random.nextInt(4) == 0 ? random.nextInt(MAX_FRAME_SIZE + 1) : random.nextInt(30);
+                if(size == 0 && !allowEmpty)
+                    size = 1;
+                byte[] frame = new byte[size];
+                random.nextBytes(frame);
+                if(text) {
+                    for (int j = 0; j < size; j++)
+                        frame[j] = (byte) (' ' + random.nextInt(95));
+                }
+                frames.add(frame);
+                encoder.encode(frame, out);
+            }
+            byte[] stream = out.toByteArray();
+            Collector collector = new Collector();
+            for (int pos = 0; pos < stream.length; ) {
+                int n = Math.min(stream.length - pos, 1 + random.nextInt(random.nextBoolean() ? 20 : 300));
+                byte[] packet = new byte[n + 4]; // frame data not at offset 0
+                System.arraycopy(stream, pos, packet, 2, n);
+                decoder.decode(packet, 2, n, collector);
+                pos += n;
+            }
+            assertEquals("run " + run, frames.size(), collector.frames.size());
+            for (int i = 0; i < frames.size(); i++)
+                assertArrayEquals("run " + run + " frame " + i, frames.get(i), collector.frames.get(i));
+        }
+        assertEquals(0, decoder.getErrors());
+    }
+
+    @Test
+    public void lineFuzz() {
+        fuzz(new FrameDecoder.Line((byte) '\n', MAX_FRAME_SIZE), FrameDecoderTest::line, true, true);
+    }
+
+    @Test
+    public void lengthPrefixedFuzz() {
+        fuzz(new FrameDecoder.LengthPrefixed(2, true, MAX_FRAME_SIZE), FrameDecoderTest::lengthPrefixed, false, true);
+    }
+
+    @Test
+    public void slipFuzz() {
+        fuzz(new FrameDecoder.Slip(MAX_FRAME_SIZE), FrameDecoderTest::slip, false, false);
+    }
+
+    @Test
+    public void cobsFuzz() {
+        fuzz(new FrameDecoder.Cobs(MAX_FRAME_SIZE), FrameDecoderTest::cobs, false, false);
+    }
+
+    @Test
+    public void lineCrRemoved() {
+        Collector collector = new Collector();
+        FrameDecoder decoder = new FrameDecoder.Line((byte) '\n', 100);
+        decoder.decode("ab\r".getBytes(), 0, 3, collector);
+        decoder.decode("\ncd\r\n".getBytes(), 0, 5, collector);
+        assertEquals(2, collector.frames.size());
+        assertArrayEquals("ab".getBytes(), collector.frames.get(0));
+        assertArrayEquals("cd".getBytes(), collector.frames.get(1));
+    }
+
+    @Test
+    public void littleEndian() {
+        Collector collector = new Collector();
+        FrameDecoder decoder = new FrameDecoder.LengthPrefixed(4, false, 100);
+        decoder.decode(new byte[]{2, 0, 0, 0, 7, 8, 0, 0, 0, 0}, 0, 10, collector);
+        assertEquals(2, collector.frames.size());
+        assertArrayEquals(new byte[]{7, 8}, collector.frames.get(0));
+        assertEquals(0, collector.frames.get(1).length);
+    }
+
+    @Test
+    public void oversizedDroppedAndResync() {
+        Collector collector = new Collector();
+        FrameDecoder decoder = new FrameDecoder.Line((byte) '\n', 4);
+        byte[] data = "123456\nab\n".getBytes();
+        for (int i = 0; i < data.length; i++)
+            decoder.decode(data, i, 1, collector);
+        assertEquals(1, decoder.getErrors());
+        assertEquals(1, collector.frames.size());
+        assertArrayEquals("ab".getBytes(), collector.frames.get(0));
+
+        collector.frames.clear();
+        decoder = new FrameDecoder.LengthPrefixed(1, true, 4);
+        decoder.decode(new byte[]{6, 1, 2, 3}, 0, 4, collector);
+        decoder.decode(new byte[]{4, 5, 6, 1, 9}, 0, 5, collector);
+        assertEquals(1, decoder.getErrors());
+        assertEquals(1, collector.frames.size());
+        assertArrayEquals(new byte[]{9}, collector.frames.get(0));
+    }
+
+    @Test
+    public void malformedDropped() {
+        Collector collector = new Collector();
+        FrameDecoder slip = new FrameDecoder.Slip(100);
+        slip.decode(new byte[]{1, (byte) 0xDB, 2, 3, (byte) 0xC0, 4, (byte) 0xC0}, 0, 7, collector);
+        assertEquals(1, slip.getErrors());
+        assertEquals(1, collector.frames.size());
+        assertArrayEquals(new byte[]{4}, collector.frames.get(0));
+
+        collector.frames.clear();
+        FrameDecoder cobs = new FrameDecoder.Cobs(100);
+        cobs.decode(new byte[]{5, 1, 2, 0, 2, 9, 0}, 0, 7, collector); // first block truncated
+        assertEquals(1, cobs.getErrors());
+        assertEquals(1, collector.frames.size());
+        assertArrayEquals(new byte[]{9}, collector.frames.get(0));
+    }
+}
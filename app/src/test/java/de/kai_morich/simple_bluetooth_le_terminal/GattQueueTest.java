@@ -0,0 +1,129 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class GattQueueTest {
+
+    private VirtualScheduler scheduler;
+    private GattQueue queue;
+    private final List<String> events = new ArrayList<>();
+
+    @Before
+    public void setup() {
+        scheduler = new VirtualScheduler();
+        queue = new GattQueue(new GattQueue.Listener() {
+            @Override public void onGattIdle() { events.add("idle"); }
+            @Override public void onGattError(IOException e) { events.add(e.getMessage()); }
+        }, scheduler);
+    }
+
+    private GattQueue.Operation operation(GattQueue.Type type) {
+        return new GattQueue.Operation(type, type + " failed", () -> events.add("start " + type));
+    }
+
+    @Test
+    public void controlFifo() {
+        queue.add(operation(GattQueue.Type.Discover));
+        queue.add(operation(GattQueue.Type.Mtu));
+        assertEquals(GattQueue.Result.Blocked, queue.startData(() -> true));
+        queue.complete(GattQueue.Type.Mtu); // not running, ignored
+        queue.complete(GattQueue.Type.Discover);
+        queue.complete(GattQueue.Type.Mtu);
+        assertEquals("[start Discover, start Mtu, idle]", events.toString());
+        assertEquals(GattQueue.Result.Started, queue.startData(() -> true));
+    }
+
+    @Test
+    public void controlWaitsForData() {
+        assertEquals(GattQueue.Result.Started, queue.startData(() -> true));
+        queue.add(operation(GattQueue.Type.Credits));
+        assertEquals("[]", events.toString());
+        scheduler.runFor(20);
+        queue.dataDone();
+        assertEquals("[start Credits]", events.toString());
+        queue.complete(GattQueue.Type.Credits);
+        assertTrue(queue.getStats(), queue.getStats().contains("Credits n=1 wait=20/20 run=0/0"));
+    }
+
+    /**
+     * connection priority has no GATT callback and onPhyUpdate is not reliable, they only wait for running operations
+     */
+    @Test
+    public void noCallback() {
+        queue.add(operation(GattQueue.Type.Priority));
+        assertEquals(GattQueue.Result.Started, queue.startData(() -> true));
+        queue.add(operation(GattQueue.Type.Phy));
+        queue.add(operation(GattQueue.Type.Priority));
+        assertEquals("[start Priority]", events.toString());
+        queue.dataDone(); // data writer continues itself, no idle callback
+        assertEquals("[start Priority, start Phy, start Priority]", events.toString());
+        assertEquals(GattQueue.Result.Started, queue.startData(() -> true));
+        queue.dataDone();
+        scheduler.runFor(60000); // no timeout without onPhyUpdate
+        assertEquals(3, events.size());
+        assertTrue(queue.getStats(), queue.getStats().contains("Priority n=2 wait=0/0 run=0/0"));
+    }
+
+    @Test
+    public void startRejected() {
+        queue.add(new GattQueue.Operation(GattQueue.Type.Descriptor, "descriptor not writable", () -> false));
+        assertEquals("[descriptor not writable]", events.toString());
+        assertEquals(GattQueue.Result.Failed, queue.startData(() -> false));
+    }
+
+    @Test
+    public void droppedCallbackTimeout() {
+        queue.add(operation(GattQueue.Type.Mtu));
+        scheduler.runFor(GattQueue.Type.Mtu.timeoutMillis - 1);
+        assertEquals("[start Mtu]", events.toString());
+        scheduler.runFor(1);
+        assertEquals("[start Mtu, gatt Mtu operation timeout]", events.toString());
+        queue.complete(GattQueue.Type.Mtu); // late callback
+        assertEquals(2, events.size());
+        assertTrue(queue.getStats().contains("timeouts=1"));
+    }
+
+    @Test
+    public void droppedDataCallbackTimeout() {
+        queue.startData(() -> true);
+        scheduler.runFor(GattQueue.Type.Data.timeoutMillis);
+        assertEquals("[gatt Data operation timeout]", events.toString());
+        queue.dataDone(); // late callback
+        assertEquals(GattQueue.Result.Started, queue.startData(() -> true));
+    }
+
+    /**
+     * timeout is restarted with each operation, slow but completing operations do not fail
+     */
+    @Test
+    public void timeoutPerOperation() {
+        for (int i = 0; i < 10; i++) {
+            queue.startData(() -> true);
+            scheduler.runFor(GattQueue.Type.Data.timeoutMillis - 1);
+            queue.dataDone();
+        }
+        queue.add(operation(GattQueue.Type.Discover));
+        scheduler.runFor(GattQueue.Type.Discover.timeoutMillis - 1);
+        queue.complete(GattQueue.Type.Discover);
+        scheduler.runFor(60000);
+        assertEquals("[start Discover, idle]", events.toString());
+    }
+
+    @Test
+    public void clearCancelsTimeout() {
+        queue.add(operation(GattQueue.Type.Discover));
+        queue.add(operation(GattQueue.Type.Mtu));
+        queue.clear();
+        scheduler.runFor(60000);
+        assertEquals("[start Discover]", events.toString());
+        assertEquals(GattQueue.Result.Started, queue.startData(() -> true));
+    }
+}
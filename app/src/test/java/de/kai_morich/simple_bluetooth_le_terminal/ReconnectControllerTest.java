@@ -0,0 +1,175 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ReconnectControllerTest {
+
+    private static final int LINK_SUPERVISION_TIMEOUT = 8;
+
+    private static class Host implements ReconnectController.Host {
+        Exception connectError; // thrown by connect, null = connect phase started
+        int connects, closes;
+        Runnable pending;
+        final List<Integer> delays = new ArrayList<>();
+        final List<ConnectionLostException> failed = new ArrayList<>();
+
+        @Override public void connect() throws Exception {
+            connects++;
+            if(connectError != null)
+                throw connectError;
+        }
+        @Override public void close() { closes++; }
+        @Override public void schedule(Runnable runnable, int delayMillis) {
+            pending = runnable;
+            delays.add(delayMillis);
+        }
+        @Override public void cancel(Runnable runnable) {
+            if(pending == runnable)
+                pending = null;
+        }
+        @Override public void onReconnectFailed(ConnectionLostException e) { failed.add(e); }
+
+        void runPending() {
+            Runnable runnable = pending;
+            pending = null;
+            runnable.run();
+        }
+    }
+
+    private static ConnectionLostException lost() {
+        return new ConnectionLostException("connection lost", LINK_SUPERVISION_TIMEOUT);
+    }
+
+    @Test
+    public void notStarted() {
+        Host host = new Host();
+        ReconnectController controller = new ReconnectController(host, new Random(1));
+        assertFalse(controller.begin(lost())); // maxAttempts 0
+        controller.setMaxAttempts(3);
+        assertFalse(controller.begin(new IOException("write failed")));
+        assertFalse(controller.begin(new ConnectionLostException("terminated by local host", 22)));
+        assertFalse(controller.isReconnecting());
+        assertNull(host.pending);
+    }
+
+    /**
+     * connect throwing during reconnect, e.g. connectGatt returning null with bluetooth off,
+     * has to end in a final error instead of staying in reconnecting state
+     */
+    @Test
+    public void connectThrows() {
+        Host host = new Host();
+        ReconnectController controller = new ReconnectController(host, new Random(1));
+        controller.setMaxAttempts(8);
+        assertTrue(controller.begin(lost()));
+        controller.start(0);
+        host.connectError = new IOException("connectGatt failed");
+        host.runPending();
+        assertFalse(controller.isReconnecting());
+        assertNull(host.pending);
+        assertEquals(1, host.connects);
+        assertEquals(1, host.closes);
+        assertEquals(1, host.failed.size());
+        assertFalse(host.failed.get(0).isReconnecting());
+        assertTrue(host.failed.get(0).getMessage().contains("connectGatt failed"));
+        assertEquals(1, controller.getFailures());
+    }
+
+    @Test
+    public void transientRetriedWithBackoff() {
+        Host host = new Host();
+        ReconnectController controller = new ReconnectController(host, new Random(1));
+        controller.setMaxAttempts(8);
+        assertTrue(controller.begin(lost()));
+        controller.start(0);
+        for (int attempt = 1; attempt <= 8; attempt++) {
+            host.runPending();
+            assertTrue(controller.isReconnecting());
+            controller.failed(new ConnectionLostException("connect timeout", 133));
+        }
+        assertFalse(controller.isReconnecting());
+        assertNull(host.pending);
+        assertEquals(8, host.connects);
+        assertEquals(8, host.delays.size());
+        for (int i = 0; i < host.delays.size(); i++) {
+            int delay = Math.min(ReconnectController.MIN_DELAY << i, ReconnectController.MAX_DELAY);
+            assertTrue("delay " + i + " = " + host.delays.get(i), host.delays.get(i) >= delay / 2 && host.delays.get(i) <= delay);
+        }
+        assertEquals(1, host.failed.size());
+        assertEquals(8, controller.getAttempts());
+    }
+
+    /**
+     * dropped GATT callback during reconnect attempt, e.g. service discovery never completes
+     */
+    @Test
+    public void operationTimeoutRetried() {
+        Host host = new Host();
+        ReconnectController controller = new ReconnectController(host, new Random(1));
+        controller.setMaxAttempts(8);
+        assertTrue(controller.begin(new ConnectionLostException("gatt Data operation timeout")));
+        controller.start(0);
+        host.runPending();
+        controller.failed(new ConnectionLostException("gatt Discover operation timeout"));
+        assertTrue(controller.isReconnecting());
+        host.runPending();
+        assertTrue(controller.connected(5000));
+        assertEquals(0, host.failed.size());
+    }
+
+    @Test
+    public void nonTransientNotRetried() {
+        Host host = new Host();
+        ReconnectController controller = new ReconnectController(host, new Random(1));
+        controller.setMaxAttempts(8);
+        controller.begin(lost());
+        controller.start(0);
+        host.runPending();
+        controller.failed(new IOException("write descriptor failed"));
+        assertFalse(controller.isReconnecting());
+        assertEquals(1, host.failed.size());
+    }
+
+    @Test
+    public void connected() {
+        Host host = new Host();
+        ReconnectController controller = new ReconnectController(host, new Random(1));
+        controller.setMaxAttempts(8);
+        controller.begin(lost());
+        controller.start(1000);
+        host.runPending();
+        controller.failed(new ConnectionLostException("connect timeout", 133));
+        host.runPending();
+        assertTrue(controller.connected(3500));
+        assertFalse(controller.isReconnecting());
+        assertFalse(controller.connected(3600));
+        assertEquals(1, controller.getReconnects());
+        assertEquals(2, controller.getAttempts());
+        assertEquals(2500, controller.getLastMillis());
+        assertEquals(0, host.failed.size());
+    }
+
+    @Test
+    public void stopped() {
+        Host host = new Host();
+        ReconnectController controller = new ReconnectController(host, new Random(1));
+        controller.setMaxAttempts(8);
+        controller.begin(lost());
+        controller.start(0);
+        controller.stop();
+        assertNull(host.pending);
+        controller.failed(lost()); // late error of canceled attempt
+        assertEquals(0, host.closes);
+        assertEquals(0, host.failed.size());
+    }
+}
@@ -0,0 +1,119 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SerialJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readback() throws Exception {
+        File dir = folder.newFolder();
+        Random random = new Random(1);
+        byte[][] written = new byte[1000][];
+        try (SerialJournal journal = new SerialJournal(dir, 64 * 1024, 100)) {
+            for (int i = 0; i < written.length; i++) {
+                written[i] = new byte[1 + random.nextInt(500)];
+                random.nextBytes(written[i]);
+                journal.append(i % 2 == 0 ? SerialJournal.RX : SerialJournal.TX, written[i], 0, written[i].length);
+            }
+        }
+        // appends crossing a segment end are split into records with same timestamp and direction
+        SerialJournal.Reader reader = SerialJournal.reader(dir);
+        SerialJournal.Record record = new SerialJournal.Record();
+        boolean more = reader.next(record);
+        long timestamp = 0;
+        for (int i = 0; i < written.length; i++) {
+            assertTrue(more);
+            assertEquals(i % 2 == 0 ? SerialJournal.RX : SerialJournal.TX, record.direction);
+            assertTrue(record.timestamp >= timestamp);
+            timestamp = record.timestamp;
+            byte direction = record.direction;
+            byte[] read = new byte[0];
+            do {
+                int offset = read.length;
+                read = Arrays.copyOf(read, offset + record.length);
+                System.arraycopy(record.data, 0, read, offset, record.length);
+                more = reader.next(record);
+            } while (more && record.direction == direction && record.timestamp == timestamp);
+            assertArrayEquals(written[i], read);
+        }
+        assertFalse(more);
+    }
+
+    @Test
+    public void recordSplitAtSegmentEnd() throws Exception {
+        File dir = folder.newFolder();
+        byte[] data = new byte[250];
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte) i;
+        try (SerialJournal journal = new SerialJournal(dir, 100, 10)) {
+            journal.append(SerialJournal.RX, data, 0, data.length);
+        }
+        SerialJournal.Reader reader = SerialJournal.reader(dir);
+        SerialJournal.Record record = new SerialJournal.Record();
+        byte[] read = new byte[0];
+        while (reader.next(record)) {
+            int offset = read.length;
+            read = Arrays.copyOf(read, offset + record.length);
+            System.arraycopy(record.data, 0, read, offset, record.length);
+        }
+        assertArrayEquals(data, read);
+    }
+
+    @Test
+    public void oldSegmentsDeleted() throws Exception {
+        File dir = folder.newFolder();
+        byte[] data = new byte[1000];
+        try (SerialJournal journal = new SerialJournal(dir, 4096, 3)) {
+            for (int i = 0; i < 100; i++)
+                journal.append(SerialJournal.TX, data, 0, data.length);
+        }
+        assertEquals(3, dir.listFiles().length);
+    }
+
+    @Test
+    public void export() throws Exception {
+        File dir = folder.newFolder();
+        try (SerialJournal journal = new SerialJournal(dir, 4096, 3)) {
+            journal.append(SerialJournal.TX, new byte[]{'a', 0x0d}, 0, 2);
+            journal.append(SerialJournal.RX, new byte[]{(byte) 0xff}, 0, 1);
+        }
+        StringWriter writer = new StringWriter();
+        assertEquals(2, SerialJournal.export(dir, writer));
+        String[] lines = writer.toString().split("\n");
+        assertEquals("0.000000 TX 610D", lines[0]);
+        assertTrue(lines[1], lines[1].endsWith(" RX FF"));
+    }
+
+    /**
+     * appending 20 byte notifications must be much faster than BLE can deliver them (< 1 MB/s)
+     */
+    @Test
+    public void throughput() throws Exception {
+        File dir = folder.newFolder();
+        byte[] data = new byte[20];
+        int count = 500000;
+        long start = System.nanoTime();
+        try (SerialJournal journal = new SerialJournal(dir, 1024 * 1024, 16)) {
+            for (int i = 0; i < count; i++)
+                journal.append(SerialJournal.RX, data, 0, data.length);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        double megabytes = count * data.length / 1e6;
+        assertTrue("journal append " + megabytes / seconds + " MB/s", megabytes / seconds > 5);
+    }
+}
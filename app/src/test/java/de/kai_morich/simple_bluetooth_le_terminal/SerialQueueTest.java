@@ -0,0 +1,103 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class SerialQueueTest {
+
+    private static final int CHUNK = 16 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static class Collector implements SerialListener {
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        int connects;
+        @Override public void onSerialConnect() { connects++; }
+        @Override public void onSerialConnectError(Exception e) { }
+        @Override public void onSerialRead(byte[] data) { this.data.write(data, 0, data.length); }
+        @Override public void onSerialIoError(Exception e) { }
+        @Override public void onSerialReadBatch(byte[] data, int length) { this.data.write(data, 0, length); }
+    }
+
+    private static byte[] pattern(int start, int length) {
+        byte[] data = new byte[length];
+        for(int i = 0; i < length; i++)
+            data[i] = (byte) (start + i);
+        return data;
+    }
+
+    @Test
+    public void dropOldest() {
+        SerialQueue queue = new SerialQueue(2 * CHUNK, SerialQueue.Policy.DropOldest);
+        for(int i = 0; i < 3; i++)
+            queue.addRead(pattern(i, CHUNK), 0, CHUNK);
+        Collector collector = new Collector();
+        queue.replay(collector);
+        assertEquals(CHUNK, queue.getDroppedBytes());
+        byte[] expected = new byte[2 * CHUNK];
+        System.arraycopy(pattern(1, CHUNK), 0, expected, 0, CHUNK);
+        System.arraycopy(pattern(2, CHUNK), 0, expected, CHUNK, CHUNK);
+        assertArrayEquals(expected, collector.data.toByteArray());
+    }
+
+    @Test
+    public void dropNewest() {
+        SerialQueue queue = new SerialQueue(2 * CHUNK, SerialQueue.Policy.DropNewest);
+        for(int i = 0; i < 3; i++)
+            queue.addRead(pattern(i, CHUNK), 0, CHUNK);
+        Collector collector = new Collector();
+        queue.replay(collector);
+        assertEquals(CHUNK, queue.getDroppedBytes());
+        assertEquals(2 * CHUNK, collector.data.size());
+        assertEquals(0, collector.data.toByteArray()[0]);
+    }
+
+    @Test
+    public void spillKeepsOrder() throws Exception {
+        File file = folder.newFile("spill.bin");
+        SerialQueue queue = new SerialQueue(CHUNK, SerialQueue.Policy.Spill);
+        queue.setSpillFile(file, 8 * CHUNK);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        queue.add(SerialQueue.Type.Connect, null);
+        for(int i = 0; i < 4; i++) {
+            byte[] data = pattern(i, CHUNK);
+            queue.addRead(data, 0, data.length);
+            expected.write(data);
+        }
+        assertEquals(3 * CHUNK, queue.getSpilledBytes());
+        assertEquals(0, queue.getDroppedBytes());
+        Collector collector = new Collector();
+        queue.replay(collector);
+        assertEquals(1, collector.connects);
+        assertArrayEquals(expected.toByteArray(), collector.data.toByteArray());
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void spillCapFallsBackToDropOldest() throws Exception {
+        File file = folder.newFile("spill.bin");
+        SerialQueue queue = new SerialQueue(CHUNK, SerialQueue.Policy.Spill);
+        queue.setSpillFile(file, 2 * CHUNK);
+        for(int i = 0; i < 6; i++)
+            queue.addRead(pattern(i, CHUNK), 0, CHUNK);
+        assertEquals(2 * CHUNK, file.length());
+        assertEquals(2 * CHUNK, queue.getSpilledBytes());
+        assertEquals(3 * CHUNK, queue.getDroppedBytes());
+        Collector collector = new Collector();
+        queue.replay(collector);
+        byte[] data = collector.data.toByteArray();
+        assertEquals(3 * CHUNK, data.length); // 2 spilled + newest in memory
+        assertEquals(0, data[0]);
+        assertEquals(1, data[CHUNK]);
+        assertEquals(5, data[2 * CHUNK]);
+    }
+}
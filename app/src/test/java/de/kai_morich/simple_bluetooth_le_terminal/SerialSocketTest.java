@@ -0,0 +1,217 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.os.SystemClock;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.LooperMode;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * SerialSocket with its device delegates connected to a SimulatedPeer, in virtual time of the main looper
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28, manifest = Config.NONE)
+@LooperMode(LooperMode.Mode.PAUSED)
+public class SerialSocketTest {
+
+    private static final int PAYLOAD = SimulatedPeer.MTU - 3;
+    // one write per round trip, one notification per NOTIFICATION_INTERVAL, 10% margin
+    private static final int MIN_WRITE_RATE = PAYLOAD * 1000 / (2 * SimulatedPeer.LATENCY) * 9 / 10; // bytes/s
+    private static final int MIN_READ_RATE = PAYLOAD * 1000 / SimulatedPeer.NOTIFICATION_INTERVAL * 9 / 10;
+    private static final int MAX_LATENCY = SimulatedPeer.LATENCY + 5; // ms
+
+    private static class Listener implements SerialListener {
+        boolean connected;
+        final List<Exception> errors = new ArrayList<>();
+        final ByteArrayOutputStream read = new ByteArrayOutputStream();
+        long readTime; // of last read
+
+        @Override public void onSerialConnect() { connected = true; }
+        @Override public void onSerialConnectError(Exception e) { errors.add(e); }
+        @Override public void onSerialRead(byte[] data) {
+            read.write(data, 0, data.length);
+            readTime = SystemClock.uptimeMillis();
+        }
+        @Override public void onSerialIoError(Exception e) { errors.add(e); }
+    }
+
+    private final Listener listener = new Listener();
+    private SimulatedPeer peer;
+    private SerialSocket socket;
+
+    private static void run(long millis) {
+        ShadowLooper.idleMainLooper(millis, TimeUnit.MILLISECONDS);
+    }
+
+    private static byte[] data(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    private void connect(SimulatedPeer.Profile profile) throws IOException {
+        // own address per profile, as GattCache keeps the service of previous connections
+        BluetoothDevice device = BluetoothAdapter.getDefaultAdapter().getRemoteDevice("00:11:22:33:44:0" + profile.ordinal());
+        peer = new SimulatedPeer(profile, device);
+        socket = new SerialSocket(RuntimeEnvironment.application, device, peer);
+        socket.connect(listener);
+        run(1000);
+        assertEquals(profile + " " + listener.errors, 0, listener.errors.size());
+        assertTrue(profile.toString(), listener.connected);
+        LinkStats stats = new LinkStats();
+        socket.getLinkStats(stats);
+        assertEquals(profile.toString(), PAYLOAD, stats.payloadSize);
+    }
+
+    @Test
+    public void writeThroughput() throws IOException {
+        for (SimulatedPeer.Profile profile : SimulatedPeer.Profile.values()) {
+            connect(profile);
+            byte[] data = data(100 * PAYLOAD);
+            long start = SystemClock.uptimeMillis();
+            socket.write(data);
+            run(60000);
+            assertArrayEquals(profile.toString(), data, peer.received.toByteArray());
+            long rate = data.length * 1000L / (peer.receivedTime - start);
+            assertTrue(profile + " write " + rate + " bytes/s", rate >= MIN_WRITE_RATE);
+            assertEquals(profile.toString(), 0, listener.errors.size());
+            socket.disconnect();
+        }
+    }
+
+    @Test
+    public void readThroughput() throws IOException {
+        for (SimulatedPeer.Profile profile : SimulatedPeer.Profile.values()) {
+            connect(profile);
+            listener.read.reset();
+            byte[] data = data(400 * PAYLOAD);
+            long start = SystemClock.uptimeMillis();
+            peer.send(data);
+            run(60000);
+            assertArrayEquals(profile.toString(), data, listener.read.toByteArray());
+            long rate = data.length * 1000L / (listener.readTime - start);
+            assertTrue(profile + " read " + rate + " bytes/s", rate >= MIN_READ_RATE);
+            assertEquals(profile.toString(), 0, listener.errors.size());
+            socket.disconnect();
+        }
+    }
+
+    /**
+     * single small write or read on idle link is not delayed by queued operations or coalescing
+     */
+    @Test
+    public void latency() throws IOException {
+        for (SimulatedPeer.Profile profile : SimulatedPeer.Profile.values()) {
+            connect(profile);
+            run(5000); // link tuning and credit grants settled
+            long start = SystemClock.uptimeMillis();
+            socket.write(new byte[]{'a', 'b', 'c'});
+            run(1000);
+            assertEquals(profile.toString(), "abc", peer.received.toString());
+            assertTrue(profile + " write latency " + (peer.receivedTime - start) + " ms", peer.receivedTime - start <= MAX_LATENCY);
+
+            listener.read.reset();
+            start = SystemClock.uptimeMillis();
+            peer.send(new byte[]{'x', 'y', 'z'});
+            run(1000);
+            assertEquals(profile.toString(), "xyz", listener.read.toString());
+            assertTrue(profile + " read latency " + (listener.readTime - start) + " ms", listener.readTime - start <= MAX_LATENCY);
+            socket.disconnect();
+        }
+    }
+
+    /**
+     * 2M PHY request during bulk write is only a hint, a missing onPhyUpdate neither fails nor stalls writes
+     */
+    @Test
+    public void missingPhyUpdate() throws IOException {
+        connect(SimulatedPeer.Profile.Nrf);
+        peer.phyUpdate = false;
+        byte[] data = data(400 * PAYLOAD);
+        long start = SystemClock.uptimeMillis();
+        socket.write(data);
+        run(60000);
+        assertEquals(0, listener.errors.size());
+        assertArrayEquals(data, peer.received.toByteArray());
+        long rate = data.length * 1000L / (peer.receivedTime - start);
+        assertTrue("write " + rate + " bytes/s", rate >= MIN_WRITE_RATE);
+        assertTrue(socket.getGattStats(), socket.getGattStats().contains("Phy n=1"));
+        assertTrue(socket.getLinkState(), socket.getLinkState().contains("phy 1M/1M"));
+    }
+
+    /**
+     * missing onCharacteristicWrite fails with transient error, the unconfirmed chunk is kept for resend
+     */
+    @Test
+    public void droppedWriteCallback() throws IOException {
+        connect(SimulatedPeer.Profile.Nrf);
+        peer.dropWrite = 3;
+        byte[] data = data(10 * PAYLOAD);
+        socket.write(data);
+        run(10000);
+        assertEquals(1, listener.errors.size());
+        assertEquals("gatt Data operation timeout", listener.errors.get(0).getMessage());
+        assertTrue(ConnectionLostException.isTransient(listener.errors.get(0)));
+        assertEquals(3 * PAYLOAD, peer.confirmedBytes);
+        assertArrayEquals(Arrays.copyOfRange(data, 3 * PAYLOAD, data.length), socket.getUnsent());
+    }
+
+    /**
+     * status 133 during bulk write, unconfirmed data including the chunk in flight is kept for resend
+     */
+    @Test
+    public void connectionLost133() throws IOException {
+        connect(SimulatedPeer.Profile.Telit);
+        byte[] data = data(50 * PAYLOAD);
+        socket.write(data);
+        run(500);
+        int confirmed = peer.confirmedBytes;
+        assertTrue(confirmed > 0 && confirmed < data.length);
+        peer.lose(133);
+        assertEquals(1, listener.errors.size());
+        ConnectionLostException e = (ConnectionLostException) listener.errors.get(0);
+        assertEquals(133, e.getStatus());
+        assertTrue(e.isTransient());
+        assertArrayEquals(Arrays.copyOfRange(data, confirmed, data.length), socket.getUnsent());
+    }
+
+    /**
+     * data of failed writeAsync futures is not resent, the caller sees the failure
+     */
+    @Test
+    public void writeAsyncNotResent() throws Exception {
+        connect(SimulatedPeer.Profile.Cc254x);
+        byte[] data1 = data(10 * PAYLOAD), data2 = data(20 * PAYLOAD), data3 = data(5 * PAYLOAD);
+        socket.write(data1);
+        WriteFuture future = socket.writeAsync(data2);
+        socket.write(data3);
+        run(100);
+        int confirmed = peer.confirmedBytes;
+        assertTrue(confirmed > 0 && confirmed < data1.length);
+        peer.lose(8);
+        assertTrue(future.isDone());
+        byte[] unsent = socket.getUnsent();
+        byte[] expected = new byte[data1.length - confirmed + data3.length];
+        System.arraycopy(data1, confirmed, expected, 0, data1.length - confirmed);
+        System.arraycopy(data3, 0, expected, data1.length - confirmed, data3.length);
+        assertArrayEquals(expected, unsent);
+    }
+}
@@ -0,0 +1,239 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * simulated BLE serial device for SerialSocket tests, replacing BluetoothGatt through GattClient.
+ * GATT callbacks are posted to the main looper, so they run in virtual time:
+ *   - requests reach the peer after LATENCY, their callback arrives after the round trip
+ *   - notifications are sent every NOTIFICATION_INTERVAL and arrive after LATENCY
+ *   - Telit TIO credits are granted like the TIO sample firmware, 32 credits refilled at 16 remaining
+ */
+class SimulatedPeer implements GattClient, GattClient.Factory {
+
+    enum Profile { Cc254x, Rn4870, Nrf, Telit }
+
+    static final int LATENCY = 15; // ms
+    static final int NOTIFICATION_INTERVAL = 5; // ms
+    static final int MTU = 247;
+    private static final int WRITE_CREDITS = 32;
+
+    private static final UUID CCCD = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+
+    final ByteArrayOutputStream received = new ByteArrayOutputStream();
+    long receivedTime; // of last write
+    int confirmedBytes; // data writes with callback delivered
+    int dropWrite = -1; // index of data write without callback
+    boolean phyUpdate = true; // some phones and peers do not call onPhyUpdate
+
+    private final Profile profile;
+    private final BluetoothDevice device;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final List<BluetoothGattService> services = new ArrayList<>();
+    private final BluetoothGattCharacteristic readCharacteristic, writeCharacteristic; // from app view
+    private BluetoothGattCharacteristic readCreditsCharacteristic, writeCreditsCharacteristic;
+    private final ArrayDeque<byte[]> notifications = new ArrayDeque<>();
+    private BluetoothGattCallback callback;
+    private boolean notificationsEnabled, sending;
+    private int writes;
+    private int sendCredits; // granted by app
+    private int writeCredits; // granted to app
+
+    SimulatedPeer(Profile profile, BluetoothDevice device) {
+        this.profile = profile;
+        this.device = device;
+        services.add(new BluetoothGattService(UUID.fromString("00001800-0000-1000-8000-00805f9b34fb"), BluetoothGattService.SERVICE_TYPE_PRIMARY));
+        BluetoothGattService service;
+        switch (profile) {
+            case Cc254x:
+                service = new BluetoothGattService(UUID.fromString("0000ffe0-0000-1000-8000-00805f9b34fb"), BluetoothGattService.SERVICE_TYPE_PRIMARY);
+                readCharacteristic = writeCharacteristic = characteristic(service, "0000ffe1-0000-1000-8000-00805f9b34fb",
+                        BluetoothGattCharacteristic.PROPERTY_READ | BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE | BluetoothGattCharacteristic.PROPERTY_NOTIFY);
+                break;
+            case Rn4870:
+                service = new BluetoothGattService(UUID.fromString("49535343-FE7D-4AE5-8FA9-9FAFD205E455"), BluetoothGattService.SERVICE_TYPE_PRIMARY);
+                readCharacteristic = writeCharacteristic = characteristic(service, "49535343-1E4D-4BD9-BA61-23C647249616",
+                        BluetoothGattCharacteristic.PROPERTY_WRITE | BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE | BluetoothGattCharacteristic.PROPERTY_NOTIFY);
+                break;
+            case Nrf:
+                service = new BluetoothGattService(UUID.fromString("6e400001-b5a3-f393-e0a9-e50e24dcca9e"), BluetoothGattService.SERVICE_TYPE_PRIMARY);
+                writeCharacteristic = characteristic(service, "6e400002-b5a3-f393-e0a9-e50e24dcca9e",
+                        BluetoothGattCharacteristic.PROPERTY_WRITE | BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE);
+                readCharacteristic = characteristic(service, "6e400003-b5a3-f393-e0a9-e50e24dcca9e", BluetoothGattCharacteristic.PROPERTY_NOTIFY);
+                break;
+            default:
+                service = new BluetoothGattService(UUID.fromString("0000FEFB-0000-1000-8000-00805F9B34FB"), BluetoothGattService.SERVICE_TYPE_PRIMARY);
+                writeCharacteristic = characteristic(service, "00000001-0000-1000-8000-008025000000", BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE);
+                readCharacteristic = characteristic(service, "00000002-0000-1000-8000-008025000000", BluetoothGattCharacteristic.PROPERTY_NOTIFY);
+                writeCreditsCharacteristic = characteristic(service, "00000003-0000-1000-8000-008025000000", BluetoothGattCharacteristic.PROPERTY_WRITE);
+                readCreditsCharacteristic = characteristic(service, "00000004-0000-1000-8000-008025000000", BluetoothGattCharacteristic.PROPERTY_INDICATE);
+                break;
+        }
+        services.add(service);
+    }
+
+    private static BluetoothGattCharacteristic characteristic(BluetoothGattService service, String uuid, int properties) {
+        BluetoothGattCharacteristic characteristic = new BluetoothGattCharacteristic(UUID.fromString(uuid), properties, 0);
+        if((properties & (BluetoothGattCharacteristic.PROPERTY_NOTIFY | BluetoothGattCharacteristic.PROPERTY_INDICATE)) != 0)
+            characteristic.addDescriptor(new BluetoothGattDescriptor(CCCD, BluetoothGattDescriptor.PERMISSION_WRITE));
+        service.addCharacteristic(characteristic);
+        return characteristic;
+    }
+
+    /**
+     * send data as notifications of MTU size
+     */
+    void send(byte[] data) {
+        for (int offset = 0; offset < data.length; offset += MTU - 3)
+            notifications.add(Arrays.copyOfRange(data, offset, Math.min(data.length, offset + MTU - 3)));
+        sendNext();
+    }
+
+    /**
+     * connection loss, pending callbacks are dropped
+     */
+    void lose(int status) {
+        handler.removeCallbacksAndMessages(null);
+        callback.onConnectionStateChange(null, status, BluetoothProfile.STATE_DISCONNECTED);
+    }
+
+    private void sendNext() {
+        if(sending || !notificationsEnabled || notifications.isEmpty())
+            return;
+        if(profile == Profile.Telit) {
+            if(sendCredits == 0)
+                return;
+            sendCredits--;
+        }
+        byte[] data = notifications.poll();
+        sending = true;
+        handler.postDelayed(() -> {
+            readCharacteristic.setValue(data);
+            callback.onCharacteristicChanged(null, readCharacteristic);
+        }, LATENCY);
+        handler.postDelayed(() -> {
+            sending = false;
+            sendNext();
+        }, NOTIFICATION_INTERVAL);
+    }
+
+    private void grantWriteCredits() {
+        int credits = WRITE_CREDITS - writeCredits;
+        writeCredits += credits;
+        handler.postDelayed(() -> {
+            readCreditsCharacteristic.setValue(new byte[]{(byte) credits});
+            callback.onCharacteristicChanged(null, readCreditsCharacteristic);
+        }, LATENCY);
+    }
+
+    /*
+     * GattClient.Factory
+     */
+    @Override
+    public GattClient connect(Context context, BluetoothDevice device, BluetoothGattCallback callback) {
+        this.callback = callback;
+        handler.postDelayed(() -> callback.onConnectionStateChange(null, BluetoothGatt.GATT_SUCCESS, BluetoothProfile.STATE_CONNECTED), 2 * LATENCY);
+        return this;
+    }
+
+    /*
+     * GattClient
+     */
+    @Override public BluetoothDevice getDevice() { return device; }
+    @Override public List<BluetoothGattService> getServices() { return services; }
+
+    @Override
+    public BluetoothGattService getService(UUID uuid) {
+        for (BluetoothGattService service : services)
+            if(service.getUuid().equals(uuid))
+                return service;
+        return null;
+    }
+
+    @Override
+    public boolean discoverServices() {
+        handler.postDelayed(() -> callback.onServicesDiscovered(null, BluetoothGatt.GATT_SUCCESS), 2 * LATENCY);
+        return true;
+    }
+
+    @Override
+    public boolean requestMtu(int mtu) {
+        handler.postDelayed(() -> callback.onMtuChanged(null, Math.min(mtu, MTU), BluetoothGatt.GATT_SUCCESS), 2 * LATENCY);
+        return true;
+    }
+
+    @Override
+    public boolean setCharacteristicNotification(BluetoothGattCharacteristic characteristic, boolean enable) {
+        return true;
+    }
+
+    @Override
+    public boolean writeDescriptor(BluetoothGattDescriptor descriptor) {
+        handler.postDelayed(() -> {
+            if(descriptor.getCharacteristic() == readCharacteristic) {
+                notificationsEnabled = true;
+                if(profile == Profile.Telit)
+                    grantWriteCredits();
+                sendNext();
+            }
+        }, LATENCY);
+        handler.postDelayed(() -> callback.onDescriptorWrite(null, descriptor, BluetoothGatt.GATT_SUCCESS), 2 * LATENCY);
+        return true;
+    }
+
+    @Override
+    public boolean writeCharacteristic(BluetoothGattCharacteristic characteristic) {
+        byte[] data = characteristic.getValue().clone();
+        if(characteristic == writeCreditsCharacteristic) {
+            handler.postDelayed(() -> {
+                sendCredits += data[0] & 0xff;
+                sendNext();
+            }, LATENCY);
+        } else if(characteristic == writeCharacteristic) {
+            int index = writes++;
+            handler.postDelayed(() -> {
+                received.write(data, 0, data.length);
+                receivedTime = SystemClock.uptimeMillis();
+                if(profile == Profile.Telit && --writeCredits <= WRITE_CREDITS / 2)
+                    grantWriteCredits();
+            }, LATENCY);
+            if(index == dropWrite)
+                return true;
+            handler.postDelayed(() -> confirmedBytes += data.length, 2 * LATENCY);
+        } else {
+            return false;
+        }
+        handler.postDelayed(() -> callback.onCharacteristicWrite(null, characteristic, BluetoothGatt.GATT_SUCCESS), 2 * LATENCY);
+        return true;
+    }
+
+    @Override public boolean requestConnectionPriority(int priority) { return true; }
+
+    @Override
+    public void setPreferredPhy(int txPhy, int rxPhy, int phyOptions) {
+        if(phyUpdate)
+            handler.postDelayed(() -> callback.onPhyUpdate(null, txPhy, rxPhy, BluetoothGatt.GATT_SUCCESS), 2 * LATENCY);
+    }
+
+    @Override public boolean isLe2MPhySupported() { return true; }
+
+    @Override public void disconnect() { handler.removeCallbacksAndMessages(null); }
+    @Override public void close() { }
+}
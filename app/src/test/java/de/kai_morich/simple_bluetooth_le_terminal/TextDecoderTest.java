@@ -0,0 +1,70 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+public class TextDecoderTest {
+
+    private static String decode(TextDecoder decoder, byte[] data, int offset, int length) {
+        return decoder.decode(data, offset, length).toString();
+    }
+
+    @Test
+    public void splitMultiByte() {
+        byte[] data = "a\u00b0b\u2713c\ud83d\ude00".getBytes(StandardCharsets.UTF_8);
+        for(int split = 0; split <= data.length; split++) {
+            TextDecoder decoder = new TextDecoder(TextDecoder.Encoding.UTF8);
+            String s = decode(decoder, data, 0, split) + decode(decoder, data, split, data.length - split);
+            assertEquals("split at " + split, "a\u00b0b\u2713c\ud83d\ude00", s);
+        }
+    }
+
+    @Test
+    public void bytewise() {
+        byte[] data = "\u2713\u2713".getBytes(StandardCharsets.UTF_8);
+        TextDecoder decoder = new TextDecoder(TextDecoder.Encoding.UTF8);
+        StringBuilder sb = new StringBuilder();
+        for(int i = 0; i < data.length; i++)
+            sb.append(decode(decoder, data, i, 1));
+        assertEquals("\u2713\u2713", sb.toString());
+    }
+
+    @Test
+    public void malformedReplaced() {
+        TextDecoder decoder = new TextDecoder(TextDecoder.Encoding.UTF8);
+        assertEquals("a\ufffdb", decode(decoder, new byte[]{'a', (byte) 0xff, 'b'}, 0, 3));
+    }
+
+    @Test
+    public void latin1() {
+        TextDecoder decoder = new TextDecoder(TextDecoder.Encoding.LATIN1);
+        assertEquals("\u00b0C", decode(decoder, new byte[]{(byte) 0xb0, 'C'}, 0, 2));
+    }
+
+    @Test
+    public void hex() {
+        TextDecoder decoder = new TextDecoder(TextDecoder.Encoding.HEX);
+        assertEquals("0D 0A FF ", decode(decoder, new byte[]{0x0d, 0x0a, (byte) 0xff}, 0, 3));
+    }
+
+    @Test
+    public void largeInput() {
+        byte[] data = new byte[10000];
+        Arrays.fill(data, (byte) 'x');
+        TextDecoder decoder = new TextDecoder(TextDecoder.Encoding.UTF8);
+        assertEquals(10000, decoder.decode(data, 0, data.length).remaining());
+        assertEquals(30000, new TextDecoder(TextDecoder.Encoding.HEX).decode(data, 0, data.length).remaining());
+    }
+
+    @Test
+    public void encodingChangeDropsPartial() {
+        TextDecoder decoder = new TextDecoder(TextDecoder.Encoding.UTF8);
+        decode(decoder, new byte[]{(byte) 0xe2, (byte) 0x9c}, 0, 2);
+        decoder.setEncoding(TextDecoder.Encoding.UTF8);
+        assertEquals("x", decode(decoder, new byte[]{'x'}, 0, 1));
+    }
+}
@@ -0,0 +1,60 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import java.util.PriorityQueue;
+
+/**
+ * virtual clock for GattQueue timeouts and simulated peer events, time only advances in run()
+ */
+class VirtualScheduler implements GattQueue.Scheduler {
+
+    private static class Task {
+        final long time, sequence;
+        final Runnable runnable;
+
+        Task(long time, long sequence, Runnable runnable) {
+            this.time = time;
+            this.sequence = sequence;
+            this.runnable = runnable;
+        }
+    }
+
+    private final PriorityQueue<Task> tasks = new PriorityQueue<>(
+            (a, b) -> a.time != b.time ? Long.compare(a.time, b.time) : Long.compare(a.sequence, b.sequence));
+    private long now = 1000;
+    private long sequence;
+
+    @Override
+    public long uptimeMillis() {
+        return now;
+    }
+
+    @Override
+    public void postAtTime(Runnable runnable, long uptimeMillis) {
+        tasks.add(new Task(Math.max(uptimeMillis, now), sequence++, runnable));
+    }
+
+    @Override
+    public void removeCallbacks(Runnable runnable) {
+        tasks.removeIf(task -> task.runnable == runnable);
+    }
+
+    void postDelayed(Runnable runnable, long delayMillis) {
+        postAtTime(runnable, now + delayMillis);
+    }
+
+    /**
+     * run tasks due until time, then set clock to time
+     */
+    void runUntil(long time) {
+        while (!tasks.isEmpty() && tasks.peek().time <= time) {
+            Task task = tasks.poll();
+            now = task.time;
+            task.runnable.run();
+        }
+        now = Math.max(now, time);
+    }
+
+    void runFor(long millis) {
+        runUntil(now + millis);
+    }
+}
@@ -0,0 +1,78 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * nRF52840 cli traffic (colored log lines, prompt, line editing) in 244 byte notifications.
+ * parse measures the parser alone, terminal the receive path TextDecoder -> AnsiTerminal -> TerminalBuffer.
+ * Score is per notification
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AnsiParserBenchmark {
+
+    private static final int PACKET_SIZE = 244;
+    private static final int PACKETS = 64;
+
+    private byte[] data;
+    private AnsiParser parser, terminal;
+
+    static byte[] cliTraffic(int length) {
+        String[] lines = {
+                "\u001b[1;32m[00:00:01.234,567] <inf> app: sensor ready\u001b[m\r\n",
+                "\u001b[1;33m[00:00:01.240,000] <wrn> ble: connection interval 7.5 ms\u001b[m\r\n",
+                "\u001b[1;31m[00:00:01.250,123] <err> spi: timeout\u001b[m\r\n",
+                "\r\n\u001b[1;32muart:~$ \u001b[mkernel uptim\b\u001b[Kme\r\n",
+                "Uptime: 1250 ms\r\n\u001b7\u001b[1;32muart:~$ \u001b[m\u001b8\u001b[8C",
+        };
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; sb.length() < length; i++)
+            sb.append(lines[i % lines.length]);
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Setup
+    public void setup(Blackhole blackhole) {
+        data = cliTraffic(PACKET_SIZE * PACKETS);
+        parser = new AnsiParser(new AnsiParser.Sink() {
+            @Override public void onText(byte[] data, int offset, int length) { blackhole.consume(length); }
+            @Override public void onControl(byte c) { blackhole.consume(c); }
+            @Override public void onEscape(char command) { blackhole.consume(command); }
+            @Override public void onCsi(char command, int[] params, int paramCount, boolean privateMode) { blackhole.consume(command); }
+        });
+        TerminalBuffer buffer = new TerminalBuffer(10000);
+        terminal = new AnsiParser(new AnsiTerminal(buffer, new TextDecoder(TextDecoder.Encoding.UTF8)));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PACKETS)
+    public void parse() {
+        for (int i = 0; i < PACKETS; i++)
+            parser.parse(data, i * PACKET_SIZE, PACKET_SIZE);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PACKETS)
+    public void terminal() {
+        for (int i = 0; i < PACKETS; i++)
+            terminal.parse(data, i * PACKET_SIZE, PACKET_SIZE);
+    }
+}
@@ -0,0 +1,58 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SerialSocket write path: 1 KB write() chunked into payloads of MTU 23, 185, 247 and 512.
+ * gc.alloc.rate.norm should be 0
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ByteRingBufferBenchmark {
+
+    @Param({"20", "182", "244", "509"})
+    int payloadSize;
+
+    private ByteRingBuffer ring;
+    private final byte[] data = new byte[1024];
+
+    @Setup
+    public void setup() {
+        ring = new ByteRingBuffer(256 * 1024, 509);
+    }
+
+    @Benchmark
+    public void writeAndChunk(Blackhole blackhole) {
+        ring.put(data, 0, data.length);
+        byte[] chunk;
+        while ((chunk = ring.take(payloadSize)) != null)
+            blackhole.consume(chunk);
+    }
+
+    @Benchmark
+    public void peekSkip(Blackhole blackhole) {
+        ring.put(data, 0, data.length);
+        while (!ring.isEmpty()) {
+            byte[] chunk = ring.peek(payloadSize);
+            blackhole.consume(chunk);
+            ring.skip(chunk.length);
+        }
+    }
+}
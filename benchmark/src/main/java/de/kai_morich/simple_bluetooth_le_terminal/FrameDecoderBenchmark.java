@@ -0,0 +1,111 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * decode stream of random frames split into 244 byte notifications, so frames cross notification boundaries.
+ * Score is per notification, gc.alloc.rate.norm should be 0
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameDecoderBenchmark {
+
+    private static final int NOTIFICATION_SIZE = 244;
+    private static final int NOTIFICATIONS = 1000;
+
+    @Param({"line", "length", "slip", "cobs"})
+    String framing;
+
+    @Param({"20", "200"})
+    int frameSize;
+
+    private FrameDecoder decoder;
+    private byte[] stream;
+    private SerialListener listener;
+
+    @Setup
+    public void setup(Blackhole blackhole) {
+        Random random = new Random(1);
+        byte[] frame = new byte[frameSize];
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        while (out.size() < NOTIFICATIONS * NOTIFICATION_SIZE) {
+            random.nextBytes(frame);
+            switch (framing) {
+                case "line":
+                    for (int i = 0; i < frameSize; i++)
+                        frame[i] = (byte) (' ' + random.nextInt(95));
+                    out.write(frame, 0, frameSize);
+                    out.write('\n');
+                    break;
+                case "length":
+                    out.write(frameSize >> 8);
+                    out.write(frameSize);
+                    out.write(frame, 0, frameSize);
+                    break;
+                case "slip":
+                    for (byte b : frame) {
+                        if(b == (byte) 0xC0 || b == (byte) 0xDB) {
+                            out.write(0xDB);
+                            out.write(b == (byte) 0xC0 ? 0xDC : 0xDD);
+                        } else {
+                            out.write(b);
+                        }
+                    }
+                    out.write(0xC0);
+                    break;
+                default: // cobs, frameSize < 254
+                    int start = 0;
+                    for (int i = 0; i <= frameSize; i++) {
+                        if(i == frameSize || frame[i] == 0) {
+                            out.write(i - start + 1);
+                            out.write(frame, start, i - start);
+                            start = i + 1;
+                        }
+                    }
+                    out.write(0);
+                    break;
+            }
+        }
+        stream = out.toByteArray();
+        switch (framing) {
+            case "line": decoder = new FrameDecoder.Line((byte) '\n', 4096); break;
+            case "length": decoder = new FrameDecoder.LengthPrefixed(2, true, 4096); break;
+            case "slip": decoder = new FrameDecoder.Slip(4096); break;
+            default: decoder = new FrameDecoder.Cobs(4096); break;
+        }
+        listener = new SerialListener() {
+            @Override public void onSerialConnect() {}
+            @Override public void onSerialConnectError(Exception e) {}
+            @Override public void onSerialRead(byte[] data) {}
+            @Override public void onSerialIoError(Exception e) {}
+            @Override public void onSerialFrame(byte[] data, int offset, int length) { blackhole.consume(length); }
+        };
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NOTIFICATIONS)
+    public void decode() {
+        for (int i = 0; i < NOTIFICATIONS; i++)
+            decoder.decode(stream, i * NOTIFICATION_SIZE, NOTIFICATION_SIZE, listener);
+    }
+}
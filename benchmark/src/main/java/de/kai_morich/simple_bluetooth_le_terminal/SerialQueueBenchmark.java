@@ -0,0 +1,73 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SerialSession handoff while detached: notifications queued in binder thread, replayed on attach.
+ * Score is per notification
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerialQueueBenchmark {
+
+    private static final int NOTIFICATIONS = 1000;
+
+    @Param({"20", "244"})
+    int notificationSize;
+
+    private SerialQueue full, queue;
+    private byte[] data;
+    private SerialListener listener;
+
+    @Setup
+    public void setup(Blackhole blackhole) {
+        data = new byte[notificationSize];
+        full = new SerialQueue(64 * 1024, SerialQueue.Policy.DropOldest);
+        while (full.getDroppedBytes() == 0)
+            full.addRead(data, 0, data.length);
+        queue = new SerialQueue(4 * 1024 * 1024, SerialQueue.Policy.DropOldest);
+        listener = new SerialListener() {
+            @Override public void onSerialConnect() {}
+            @Override public void onSerialConnectError(Exception e) {}
+            @Override public void onSerialRead(byte[] data) { blackhole.consume(data); }
+            @Override public void onSerialIoError(Exception e) {}
+            @Override public void onSerialReadBatch(byte[] data, int length) { blackhole.consume(data); }
+        };
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NOTIFICATIONS)
+    public void addAndReplay() {
+        for (int i = 0; i < NOTIFICATIONS; i++)
+            queue.addRead(data, 0, data.length);
+        queue.replay(listener);
+    }
+
+    /**
+     * queue at byte cap, each add drops oldest data
+     */
+    @Benchmark
+    @OperationsPerInvocation(NOTIFICATIONS)
+    public void addDropOldest() {
+        for (int i = 0; i < NOTIFICATIONS; i++)
+            full.addRead(data, 0, data.length);
+    }
+}
@@ -0,0 +1,58 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * append to a full 10000 line scrollback, so each line drops the oldest one,
+ * and read a line with its style runs as TerminalView does for visible lines
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TerminalBufferBenchmark {
+
+    private static final char[] LINE = "[00:00:01.234,567] <inf> app: sensor ready, value 1234".toCharArray();
+
+    private TerminalBuffer buffer;
+    private final StringBuilder sb = new StringBuilder();
+    private int style;
+
+    @Setup
+    public void setup() {
+        buffer = new TerminalBuffer(10000);
+        for (int i = 0; i < 10000; i++)
+            appendLine();
+    }
+
+    @Benchmark
+    public void appendLine() {
+        style = style == 0 ? TerminalStyle.withForeground(0, 3) : 0;
+        buffer.setStyle(style);
+        buffer.append(LINE, 0, LINE.length);
+        buffer.newLine();
+    }
+
+    @Benchmark
+    public void readLine(Blackhole blackhole) {
+        sb.setLength(0);
+        int line = buffer.getLineCount() / 2;
+        buffer.getLine(line, sb);
+        buffer.visitStyleRuns(line, (from, to, s) -> blackhole.consume(s));
+        blackhole.consume(sb);
+    }
+}
@@ -0,0 +1,59 @@
+package de.kai_morich.simple_bluetooth_le_terminal;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * decode 244 byte notifications, mixed text has 2 and 3 byte UTF-8 sequences split across notifications.
+ * gc.alloc.rate.norm should be 0. newString is the previous String per notification, independent of encoding
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TextDecoderBenchmark {
+
+    @Param({"UTF8", "LATIN1", "HEX"})
+    String encoding; // TextDecoder.Encoding is not visible to generated code
+
+    @Param({"ascii", "mixed"})
+    String text;
+
+    private TextDecoder decoder;
+    private byte[] data;
+
+    @Setup
+    public void setup() {
+        decoder = new TextDecoder(TextDecoder.Encoding.valueOf(encoding));
+        String line = text.equals("ascii") ? "temperature 21.5 C, humidity 40 %\r\n" : "temperature 21.5 \u00b0C \u2713 humidity 40 %\r\n";
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 300)
+            sb.append(line);
+        data = sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public CharBuffer decode() {
+        return decoder.decode(data, 0, 244);
+    }
+
+    @Benchmark
+    public String newString() {
+        return new String(data, 0, 244);
+    }
+}